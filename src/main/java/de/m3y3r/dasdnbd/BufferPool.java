@@ -0,0 +1,93 @@
+package de.m3y3r.dasdnbd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Pool of direct byte buffers in power of two size classes.
+ * Socket I/O of direct buffers avoids the copy into a temporary direct buffer done by the JDK for heap buffers.
+ * Larger buffers aren't pooled, and the pooled bytes are limited per class and in total, so an idle
+ * connection keeps little direct memory.
+ */
+class BufferPool {
+
+	private static final int MIN_SIZE_CLASS = 4; // 16 bytes
+	private static final int MAX_SIZE_CLASS = 20; // 1 MiB, larger buffers are allocated with their length
+	private static final int MAX_POOLED_BYTES_PER_CLASS = 1024 * 1024;
+	private static final int MAX_POOLED_BUFFERS_PER_CLASS = 16;
+	private static final long MAX_POOLED_BYTES = 2 * 1024 * 1024;
+
+	private final List<ArrayDeque<ByteBuffer>> pools;
+	private long pooledBytes; // guarded by this
+
+	BufferPool() {
+		pools = new ArrayList<>(MAX_SIZE_CLASS + 1);
+		for(int i = 0; i <= MAX_SIZE_CLASS; i++) {
+			pools.add(new ArrayDeque<>());
+		}
+	}
+
+	/**
+	 * get a buffer with position 0 and limit len
+	 * @param len
+	 * @return
+	 */
+	ByteBuffer acquire(int len) {
+		int sizeClass = getSizeClass(len);
+		if(sizeClass > MAX_SIZE_CLASS) {
+			return ByteBuffer.allocateDirect(len);
+		}
+
+		ByteBuffer bb;
+		synchronized (this) {
+			bb = pools.get(sizeClass).poll();
+			if(bb != null)
+				pooledBytes -= bb.capacity();
+		}
+		if(bb == null) {
+			bb = ByteBuffer.allocateDirect(1 << sizeClass);
+		}
+		bb.clear().limit(len);
+		bb.order(ByteOrder.BIG_ENDIAN);
+		return bb;
+	}
+
+	/**
+	 * return a buffer to the pool, buffers which were not acquired from a pool are ignored
+	 * @param bb
+	 */
+	void release(ByteBuffer bb) {
+		if(!bb.isDirect() || Integer.bitCount(bb.capacity()) != 1)
+			return;
+
+		int sizeClass = Integer.numberOfTrailingZeros(bb.capacity());
+		if(sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS)
+			return;
+
+		int maxBuffers = Math.min(MAX_POOLED_BUFFERS_PER_CLASS, MAX_POOLED_BYTES_PER_CLASS >> sizeClass);
+		synchronized (this) {
+			ArrayDeque<ByteBuffer> pool = pools.get(sizeClass);
+			if(pool.size() < maxBuffers && pooledBytes + bb.capacity() <= MAX_POOLED_BYTES) {
+				pool.push(bb);
+				pooledBytes += bb.capacity();
+			}
+		}
+	}
+
+	/* drop all pooled buffers */
+	synchronized void clear() {
+		for(ArrayDeque<ByteBuffer> pool : pools) {
+			pool.clear();
+		}
+		pooledBytes = 0;
+	}
+
+	private static int getSizeClass(int len) {
+		if(len <= 1 << MIN_SIZE_CLASS)
+			return MIN_SIZE_CLASS;
+		return 32 - Integer.numberOfLeadingZeros(len - 1);
+	}
+}
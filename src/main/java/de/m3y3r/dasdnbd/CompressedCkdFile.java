@@ -0,0 +1,1020 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * One file of a compressed CKD image, with its own headers, level 1/2 tables, free space and journal.
+ * Tables are indexed by the track number of the device, tracks which are stored in another file
+ * of the image have an OTHER_FILE level 1 or level 2 entry.
+ *
+ * The metadata is changed in memory and journaled, it's written into the file only after the journal
+ * is committed by sync. Freed space is reused only after the commit too, until then the committed
+ * metadata may still reference it.
+ *
+ * A snapshot is a copy of the level 1 table in a sidecar file. Level 2 tables and tracks which
+ * are referenced by a snapshot are copied on write and never freed while the snapshot exists.
+ */
+class CompressedCkdFile implements Closeable {
+
+	/* level 1 or level 2 entry of a track which is stored in another file, all ones on disk in both formats */
+	static final long OTHER_FILE = -1;
+
+	private static final byte[] FREE_SPACE_MAGIC = "FREE_BLK".getBytes();
+	private static final long MAX_FILE_SIZE = 0xffffffffl; // 32 bit positions
+	private static final String SNAPSHOT_SUFFIX = ".snap.";
+	private static final long JOURNAL_CHECKPOINT_SIZE = 4 * 1024 * 1024;
+	private static final int MIN_FREE_SPACE_MAP_BLOCKS = 1024; // free space blocks of a new free space map
+	private static final long SYNC_PENDING_SIZE = 1024 * 1024; // journal bytes of uncommitted updates which are synced without flush
+	private static final int SYNC_PENDING_LEVEL2_TABLES = 1024; // changed level 2 tables which are synced without flush
+
+	private final String fileName;
+	private final boolean readOnly;
+	private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+	private boolean cckd64; // 64 bit positions in headers, tables and free space blocks
+	private int level1EntrySize = Integer.BYTES;
+	private int level2EntrySize = 8;
+	private int freeSpaceBlockLength = 8;
+	private FileChannel channel;
+	private AsynchronousFileChannel asyncChannel;
+	private Map<String, Object> deviceHeader;
+	private Map<String, Number> compressedDeviceHeader;
+	private ByteBuffer level1Table;
+	private long level1TablePosition;
+	private ByteBuffer freeSpaceMap;
+	private long freeSpaceMapPosition;
+	private final Map<Long, ByteBuffer> level2Tables = new HashMap<>(); // level 2 tables changed since the last commit
+	private final List<long[]> pendingFrees = new ArrayList<>(); // space freed since the last commit
+	private MetadataJournal journal;
+	private long firstTrack; // first track of the cylinder range of this file
+	private final Map<String, ByteBuffer> snapshots = new ConcurrentHashMap<>(); // level 1 tables of the snapshots
+
+	/**
+	 * @param fileName
+	 * @param completionExecutor executor which completes asynchronous reads
+	 * @param readOnly open the file and map the tables read-only, nothing is ever written
+	 * @throws IOException
+	 */
+	CompressedCkdFile(String fileName, ExecutorService completionExecutor, boolean readOnly) throws IOException {
+		this.fileName = fileName;
+		this.readOnly = readOnly;
+
+		File ckdFile = new File(fileName);
+		File journalFile = new File(fileName + ".journal");
+		if(readOnly) {
+			if(journalFile.length() > 0)
+				throw new IOException("File " + fileName + " was not closed cleanly, open it read-write once to recover it");
+			channel = FileChannel.open(ckdFile.toPath(), StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(ckdFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			/* recover metadata of an unclean shutdown */
+			journal = new MetadataJournal(journalFile.toPath());
+			if(journal.replay(channel) > 0) {
+				channel.force(true);
+			}
+			journal.reset();
+		}
+
+		asyncChannel = AsynchronousFileChannel.open(ckdFile.toPath(), Collections.singleton(StandardOpenOption.READ), completionExecutor);
+
+		deviceHeader = readDeviceHeader();
+		String deviceId = (String) deviceHeader.get("deviceId");
+		if(deviceId.startsWith("CKD_C064") || deviceId.startsWith("CKD_S064")) {
+			cckd64 = true;
+			level1EntrySize = Long.BYTES;
+			level2EntrySize = 16;
+			freeSpaceBlockLength = 16;
+		}
+		compressedDeviceHeader = readCompressedDeviceHeader();
+		level1Table = readLevel1Table((int) compressedDeviceHeader.get("sizeLevel1Table"));
+		loadSnapshots();
+
+		if(readOnly) {
+			deviceHeader = Collections.unmodifiableMap(deviceHeader);
+			compressedDeviceHeader = Collections.unmodifiableMap(compressedDeviceHeader);
+		}
+	}
+
+	String getFileName() {
+		return fileName;
+	}
+
+	Map<String, Object> getDeviceHeader() {
+		return deviceHeader;
+	}
+
+	Map<String, Number> getCompressedDeviceHeader() {
+		return compressedDeviceHeader;
+	}
+
+	long getFirstTrack() {
+		return firstTrack;
+	}
+
+	void setFirstTrack(long firstTrack) {
+		this.firstTrack = firstTrack;
+	}
+
+	private ByteBuffer readLevel1Table(int level1TableSize) throws IOException {
+		level1TablePosition = channel.position();
+		ByteBuffer level1Table = ByteBuffer.allocate(level1TableSize * level1EntrySize);
+		readFully(level1Table, level1TablePosition);
+		level1Table.order(byteOrder);
+		return level1Table;
+	}
+
+	private Map<String, Object> readDeviceHeader() throws IOException {
+		ByteBuffer bb = read(512);
+
+		Map<String, Object> s = new HashMap<>();
+		byte[] deviceId = new byte[8];
+		bb.get(deviceId);
+		s.put("deviceId", new String(deviceId, "US-ASCII"));
+		s.put("noHeads", bb.getInt());
+		s.put("trackSize", bb.getInt());
+		s.put("deviceType", bb.get());
+		s.put("fileSequenceNo", bb.get());
+		s.put("highesCylinderOrNull", bb.getShort());
+		return s;
+	}
+
+	private Map<String, Number> readCompressedDeviceHeader() throws IOException {
+		ByteBuffer bb = read(512);
+
+		Map<String, Number> s = new HashMap<>();
+		s.put("v", bb.get());
+		s.put("r", bb.get());
+		s.put("m", bb.get());
+		s.put("options", bb.get());
+
+		/* option flags */
+		if((s.get("options").byteValue() & 2) == 1)
+			byteOrder = ByteOrder.BIG_ENDIAN;
+		bb.order(byteOrder);
+
+		s.put("sizeLevel1Table", bb.getInt());
+		s.put("sizeLevel2Table", bb.getInt());
+		if(cckd64) {
+			bb.getInt(); // padding
+			s.put("fileSize", bb.getLong());
+			s.put("fileUsed", bb.getLong());
+			s.put("positionToFreeSpace", bb.getLong());
+			s.put("totalFreeSpace", bb.getLong());
+			s.put("largestFreeSpace", bb.getLong());
+			s.put("numberFreeSpaces", (int) bb.getLong());
+			s.put("imbeddedFreeSpace", bb.getLong());
+		} else {
+			s.put("fileSize", ByteUtil.u32ToLong(bb.getInt()));
+			s.put("fileUsed", ByteUtil.u32ToLong(bb.getInt()));
+			s.put("positionToFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
+			s.put("totalFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
+			s.put("largestFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
+			s.put("numberFreeSpaces", bb.getInt());
+			s.put("imbeddedFreeSpace", ByteUtil.u32ToLong(bb.getInt())); //FIXME: what is this field?!
+		}
+		s.put("noCylindersOnDevice", bb.getInt());
+		s.put("nullTrackFormat", bb.get());
+		s.put("compressAlgorithm", bb.get());
+		s.put("compressParameter", bb.getShort());
+		return s;
+	}
+
+	private ByteBuffer read(int noBytes) throws IOException {
+		return read(noBytes, byteOrder);
+	}
+
+	private ByteBuffer read(int noBytes, ByteOrder byteOrder) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(noBytes);
+
+		//FIXME: check read len vs. requestes len
+		int len = channel.read(bb);
+		bb.flip();
+		bb.order(byteOrder);
+		return bb;
+	}
+
+	/* positional read of the remaining bytes of the buffer, the buffer is flipped */
+	void readFully(ByteBuffer bb, long pos) throws IOException {
+		while(bb.hasRemaining()) {
+			int l = channel.read(bb, pos + bb.position());
+			if(l < 0) throw new IOException("Unexpected end of file " + fileName + " at position " + (pos + bb.position()));
+		}
+		bb.flip();
+	}
+
+	/* read the remaining bytes of the buffer, the buffer is flipped on completion */
+	CompletableFuture<ByteBuffer> readAsync(long pos, ByteBuffer bb) {
+		CompletableFuture<ByteBuffer> f = new CompletableFuture<>();
+		asyncChannel.read(bb, pos, pos, new CompletionHandler<Integer, Long>() {
+			@Override
+			public void completed(Integer len, Long pos) {
+				if(len < 0) {
+					f.completeExceptionally(new IOException("Unexpected end of file " + fileName + " at position " + pos));
+				} else if(bb.hasRemaining()) {
+					asyncChannel.read(bb, pos + len, pos + len, this);
+				} else {
+					bb.flip();
+					f.complete(bb);
+				}
+			}
+
+			@Override
+			public void failed(Throwable e, Long pos) {
+				f.completeExceptionally(e);
+			}
+		});
+		return f;
+	}
+
+	/* write the track header and track data */
+	void writeTrack(long pos, ByteBuffer trackHeader, ByteBuffer trackData) throws IOException {
+		this.channel.position(pos);
+		this.channel.write(trackHeader);
+		this.channel.write(trackData);
+	}
+
+	long readLevel1Entry(long trk) {
+		return readLevel1Entry(level1Table, trk);
+	}
+
+	/**
+	 * @param trk
+	 * @param snapshot name of the snapshot or null for the current state
+	 * @return
+	 */
+	long readLevel1Entry(long trk, String snapshot) {
+		return readLevel1Entry(getLevel1Table(snapshot), trk);
+	}
+
+	private long readLevel1Entry(ByteBuffer level1Table, long trk) {
+		int l1ent = (int) (trk / compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		if(l1ent >= compressedDeviceHeader.get("sizeLevel1Table").intValue())
+			return OTHER_FILE;
+		if(cckd64) {
+			return level1Table.getLong(l1ent * Long.BYTES);
+		}
+		long pos = ByteUtil.u32ToLong(level1Table.getInt(l1ent * Integer.BYTES));
+		return pos == 0xffffffffl ? OTHER_FILE : pos;
+	}
+
+	void writeLevel1Entry(long trk, long level2EntryBasePos) {
+		int l1ent = (int) (trk / compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		ByteBuffer l1Entry = ByteBuffer.allocate(level1EntrySize).order(byteOrder);
+		if(cckd64)
+			l1Entry.putLong(0, level2EntryBasePos);
+		else
+			l1Entry.putInt(0, (int)level2EntryBasePos);
+
+		level1Table.position(l1ent * level1EntrySize);
+		level1Table.put(l1Entry.duplicate());
+		journal.log(level1TablePosition + (long) l1ent * level1EntrySize, l1Entry);
+	}
+
+	Map<String, Number> readLevel2Entry(long l2BasePos, long trk) throws IOException {
+		int l2ent = (int) (trk % compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		return readLevel2Entry(readLevel2Table(l2BasePos, l2ent, 1));
+	}
+
+	/* reads entries of a level 2 table, a table which is changed since the last commit is read from memory */
+	private ByteBuffer readLevel2Table(long l2BasePos, int l2ent, int n) throws IOException {
+		ByteBuffer level2Entries = ByteBuffer.allocate(n * level2EntrySize);
+		ByteBuffer level2Table = level2Tables.get(l2BasePos);
+		if(level2Table == null) {
+			readFully(level2Entries, l2BasePos + l2ent * level2EntrySize);
+			return level2Entries;
+		}
+
+		ByteBuffer bb = level2Table.duplicate();
+		bb.limit((l2ent + n) * level2EntrySize);
+		bb.position(l2ent * level2EntrySize);
+		level2Entries.put(bb);
+		level2Entries.flip();
+		return level2Entries;
+	}
+
+	/* a level 2 table which is changed, it's kept in memory until the next commit */
+	private ByteBuffer getChangedLevel2Table(long l2BasePos) throws IOException {
+		ByteBuffer level2Table = level2Tables.get(l2BasePos);
+		if(level2Table == null) {
+			level2Table = readLevel2Table(l2BasePos, 0, compressedDeviceHeader.get("sizeLevel2Table").intValue());
+			level2Tables.put(l2BasePos, level2Table);
+		}
+		return level2Table;
+	}
+
+	/**
+	 * reads the level 2 entries of consecutive tracks, tracks of an unused level 1 entry
+	 * get a null track entry, tracks of a level 1 entry in another file get the position OTHER_FILE
+	 * @param firstTrack
+	 * @param noTracks
+	 * @param snapshot name of the snapshot or null for the current state
+	 * @return
+	 * @throws IOException
+	 */
+	List<Map<String, Number>> readLevel2Entries(long firstTrack, int noTracks, String snapshot) throws IOException {
+		ByteBuffer level1Table = getLevel1Table(snapshot);
+		int sizeLevel2Table = compressedDeviceHeader.get("sizeLevel2Table").intValue();
+		List<Map<String, Number>> l2Entries = new ArrayList<>(noTracks);
+
+		for(long trk = firstTrack, end = firstTrack + noTracks; trk < end; ) {
+			int l2ent = (int) (trk % sizeLevel2Table);
+			int n = (int) Math.min(end - trk, sizeLevel2Table - l2ent);
+
+			long l2BasePos = readLevel1Entry(level1Table, trk);
+			if(l2BasePos == 0 || l2BasePos == OTHER_FILE) {
+				/* empty L2 table, L2 table not yet used...! */
+				int nullFormat = compressedDeviceHeader.get("nullTrackFormat").intValue();
+				for(int i = 0; i < n; i++) {
+					Map<String, Number> s = new HashMap<>();
+					s.put("position", l2BasePos);
+					s.put("length", nullFormat);
+					s.put("size", nullFormat);
+					l2Entries.add(s);
+				}
+			} else {
+				/* one read for all entries in this level 2 table */
+				ByteBuffer level2Entries = readLevel2Table(l2BasePos, l2ent, n);
+				for(int i = 0; i < n; i++) {
+					l2Entries.add(readLevel2Entry(level2Entries));
+				}
+			}
+			trk += n;
+		}
+		return l2Entries;
+	}
+
+	private Map<String, Number> readLevel2Entry(ByteBuffer level2Entries) {
+		level2Entries.order(byteOrder);
+
+		Map<String, Number> s = new HashMap<>();
+		long pos;
+		if(cckd64) {
+			pos = level2Entries.getLong();
+		} else {
+			pos = ByteUtil.u32ToLong(level2Entries.getInt());
+			if(pos == 0xffffffffl) pos = OTHER_FILE;
+		}
+		s.put("position", pos);
+		s.put("length", ByteUtil.u16ToInt(level2Entries.getShort()));
+		s.put("size", ByteUtil.u16ToInt(level2Entries.getShort()));
+		if(cckd64)
+			level2Entries.getInt(); // reserved
+		return s;
+	}
+
+	void writeLevel2Entry(long level2EntryBasePos, long trackNo, Map<String, Number> level2Entry) throws IOException {
+		writeLevel2Entries(level2EntryBasePos, trackNo, Collections.singletonList(level2Entry));
+	}
+
+	/**
+	 * writes the level 2 entries of consecutive tracks of one level 2 table with a single write
+	 * @param level2EntryBasePos
+	 * @param firstTrack
+	 * @param level2Entries
+	 * @throws IOException
+	 */
+	void writeLevel2Entries(long level2EntryBasePos, long firstTrack, List<Map<String, Number>> level2Entries) throws IOException {
+
+		ByteBuffer l2Entries = ByteBuffer.allocate(level2Entries.size() * level2EntrySize).order(byteOrder);
+		for(Map<String, Number> level2Entry : level2Entries) {
+			if(cckd64)
+				l2Entries.putLong(level2Entry.get("position").longValue());
+			else
+				l2Entries.putInt(level2Entry.get("position").intValue());
+			l2Entries.putShort(level2Entry.get("length").shortValue());
+			l2Entries.putShort(level2Entry.get("size").shortValue());
+			if(cckd64)
+				l2Entries.putInt(0);
+		}
+		l2Entries.rewind();
+
+		int l2ent = (int) (firstTrack % compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		ByteBuffer level2Table = getChangedLevel2Table(level2EntryBasePos);
+		level2Table.position(l2ent * level2EntrySize);
+		level2Table.put(l2Entries.duplicate());
+		journal.log(level2EntryBasePos + (l2ent * level2EntrySize), l2Entries);
+	}
+
+	void writeLevel2Table(long level2TableBasePos, ByteBuffer level2Table) throws IOException {
+		ByteBuffer changedLevel2Table = ByteBuffer.allocate(level2Table.remaining());
+		changedLevel2Table.put(level2Table.duplicate());
+		changedLevel2Table.flip();
+		level2Tables.put(level2TableBasePos, changedLevel2Table);
+		journal.log(level2TableBasePos, level2Table);
+	}
+
+	/* create empty l2 table */
+	ByteBuffer createLevel2Table() {
+		int n = compressedDeviceHeader.get("sizeLevel2Table").intValue();
+		short nullFormat = compressedDeviceHeader.get("nullTrackFormat").shortValue();
+
+		ByteBuffer level2Entries = ByteBuffer.allocate(n * level2EntrySize).order(byteOrder);
+
+		for(int i = 0; i < n; i++) {
+			if(cckd64)
+				level2Entries.putLong(0);
+			else
+				level2Entries.putInt(0);
+			level2Entries.putShort(nullFormat);
+			level2Entries.putShort(nullFormat);
+			if(cckd64)
+				level2Entries.putInt(0);
+		}
+		level2Entries.rewind();
+		return level2Entries;
+	}
+
+	/**
+	 * frees the space after the next commit, the committed metadata may still reference it until then
+	 * @param freeSpacePos
+	 * @param freeSpaceSize
+	 */
+	void deallocateFreeSpace(long freeSpacePos, int freeSpaceSize) {
+		pendingFrees.add(new long[] {freeSpacePos, freeSpaceSize});
+	}
+
+	/* the free space map is made large enough for all frees first, so they can't fail halfway */
+	private void freePendingSpace() throws IOException {
+		if(pendingFrees.isEmpty())
+			return;
+
+		List<long[]> frees = new ArrayList<>(pendingFrees);
+		pendingFrees.clear();
+		/* a moved free space map queues its old block for the next commit */
+		ensureFreeSpaceMapCapacity(frees.size());
+		for(long[] free : frees)
+			freeSpace(free[0], (int) free[1]);
+	}
+
+	/* adds the space to the free space map, it's merged with adjacent free space blocks */
+	private void freeSpace(long freeSpacePos, int freeSpaceSize) throws IOException {
+		if(getFreeSpaceMap() == null)
+			growFreeSpaceMap(1);
+
+		int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+		int before = -1, after = -1;
+		for(int i = 0; i < noFreeSpaces; i++) {
+			long[] freeBlockPosLen = readFreeSpaceBlock(i);
+			if(freeBlockPosLen[0] == freeSpaceMapPosition)
+				continue;
+			if(freeBlockPosLen[0] + freeBlockPosLen[1] == freeSpacePos)
+				before = i;
+			else if(freeSpacePos + freeSpaceSize == freeBlockPosLen[0])
+				after = i;
+		}
+
+		long mergedPos = freeSpacePos, mergedLen = freeSpaceSize;
+		if(before >= 0) {
+			long[] freeBlockPosLen = readFreeSpaceBlock(before);
+			mergedPos = freeBlockPosLen[0];
+			mergedLen += freeBlockPosLen[1];
+		}
+		if(after >= 0)
+			mergedLen += readFreeSpaceBlock(after)[1];
+
+		if(before >= 0) {
+			writeFreeSpaceBlock(before, mergedPos, mergedLen);
+			if(after >= 0)
+				removeFreeSpaceBlock(after);
+		} else if(after >= 0) {
+			writeFreeSpaceBlock(after, mergedPos, mergedLen);
+		} else {
+			if(noFreeSpaces >= getFreeSpaceMapCapacity()) {
+				growFreeSpaceMap(1);
+				noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+			}
+			writeFreeSpaceBlock(noFreeSpaces, freeSpacePos, freeSpaceSize);
+			compressedDeviceHeader.put("numberFreeSpaces", noFreeSpaces + 1);
+		}
+
+		long totalFreeSpace = compressedDeviceHeader.get("totalFreeSpace").longValue();
+		compressedDeviceHeader.put("totalFreeSpace", totalFreeSpace + freeSpaceSize);
+		long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
+		compressedDeviceHeader.put("fileUsed", fileUsed - freeSpaceSize);
+
+		if(compressedDeviceHeader.get("largestFreeSpace").longValue() < mergedLen) {
+			compressedDeviceHeader.put("largestFreeSpace", mergedLen);
+		}
+	}
+
+	long allocateFreeSpace(int len) throws IOException {
+
+		long lfs = compressedDeviceHeader.get("largestFreeSpace").longValue();
+		if(len > lfs || getFreeSpaceMap() == null) {
+			// too big to fit in a free space slot, append to end of file
+			return allocateEndOfFile(len);
+		}
+
+		// find free space slot
+		long freeSpacePos = -1;
+		long largestFreeSpace = 0;
+		int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+		for(int i = 0; i < noFreeSpaces; i++) {
+			long[] freeBlockPosLen = readFreeSpaceBlock(i);
+
+			//skip the entry, that describes this free space block array itself!
+			if(freeBlockPosLen[0] == freeSpaceMapPosition)
+				continue;
+
+			if(freeSpacePos < 0 && len <= freeBlockPosLen[1]) {
+				/* data fits into current free block, assign position */
+				freeSpacePos = freeBlockPosLen[0];
+				freeBlockPosLen[0] += len;
+				freeBlockPosLen[1] -= len;
+				if(freeBlockPosLen[1] == 0) {
+					/* the last block takes the place of the used up block */
+					removeFreeSpaceBlock(i);
+					noFreeSpaces--;
+					i--;
+					continue;
+				}
+				writeFreeSpaceBlock(i, freeBlockPosLen[0], freeBlockPosLen[1]);
+			}
+			largestFreeSpace = Math.max(largestFreeSpace, freeBlockPosLen[1]);
+		}
+		compressedDeviceHeader.put("largestFreeSpace", largestFreeSpace);
+
+		if(freeSpacePos < 0) {
+			/* oh great! the free space block entry that contains the free space block map
+			 * "positionToFreeSpace", can also be the "largestFreeSpace".. WTF?!
+			 * allocate at the end of file in this case
+			 */
+			return allocateEndOfFile(len);
+		}
+
+		// update header statistics
+		long totalFreeSpace = compressedDeviceHeader.get("totalFreeSpace").longValue();
+		long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
+		compressedDeviceHeader.put("totalFreeSpace", totalFreeSpace - len);
+		compressedDeviceHeader.put("fileUsed", fileUsed + len);
+		return freeSpacePos;
+	}
+
+	/* the free space map, null if the file has none yet */
+	private ByteBuffer getFreeSpaceMap() throws IOException {
+		if(freeSpaceMap == null) {
+			long positionToFreeSpace = (long) compressedDeviceHeader.get("positionToFreeSpace");
+			if(positionToFreeSpace == 0)
+				return null;
+
+			/* test for old or new free block format */
+			this.channel.position(positionToFreeSpace);
+			ByteBuffer format = read(FREE_SPACE_MAGIC.length);
+			if(!Arrays.equals(FREE_SPACE_MAGIC, format.array())) {
+				throw new IllegalAccessError("old free space block format not supported!");
+			}
+
+			// search free space block which describes the free space array itself!
+			int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+			for(int i = 0; i < noFreeSpaces; i++) {
+				ByteBuffer fsb = read(freeSpaceBlockLength);
+				long[] freeBlockPosLen = readFreeSpaceBlock(fsb);
+				if(positionToFreeSpace == freeBlockPosLen[0]) {
+					freeSpaceMapPosition = freeBlockPosLen[0];
+					ByteBuffer map = ByteBuffer.allocate((int) freeBlockPosLen[1]);
+					readFully(map, freeBlockPosLen[0]);
+					freeSpaceMap = map.order(byteOrder);
+					break;
+				}
+			}
+			if(freeSpaceMap == null)
+				throw new IOException("Free space map of " + fileName + " at position " + positionToFreeSpace + " has no block of its own");
+		}
+		return freeSpaceMap;
+	}
+
+	/* number of free space blocks which fit into the free space map */
+	private int getFreeSpaceMapCapacity() {
+		return (freeSpaceMap.capacity() - FREE_SPACE_MAGIC.length) / freeSpaceBlockLength;
+	}
+
+	/* grows the free space map until the blocks can be freed without a merge */
+	private void ensureFreeSpaceMapCapacity(int blocks) throws IOException {
+		while(getFreeSpaceMap() == null || compressedDeviceHeader.get("numberFreeSpaces").intValue() + blocks > getFreeSpaceMapCapacity())
+			growFreeSpaceMap(blocks);
+	}
+
+	/*
+	 * moves the free space map into a block of twice the size needed at the end of the file. The old block
+	 * is freed after the next commit, so it's never overwritten while the committed header still points to it.
+	 */
+	private void growFreeSpaceMap(int blocks) throws IOException {
+		int noFreeSpaces = freeSpaceMap != null ? compressedDeviceHeader.get("numberFreeSpaces").intValue() : 0;
+		int capacity = Math.max(MIN_FREE_SPACE_MAP_BLOCKS, 2 * (noFreeSpaces + blocks + 2));
+		int newLen = FREE_SPACE_MAGIC.length + capacity * freeSpaceBlockLength;
+		long newPos = allocateEndOfFile(newLen);
+
+		ByteBuffer newMap = ByteBuffer.allocate(newLen).order(byteOrder);
+		newMap.put(FREE_SPACE_MAGIC);
+		int n = 0;
+		for(int i = 0; i < noFreeSpaces; i++) {
+			long[] freeBlockPosLen = readFreeSpaceBlock(i);
+			if(freeBlockPosLen[0] == freeSpaceMapPosition)
+				continue;
+			putFreeSpaceBlock(newMap, freeBlockPosLen[0], freeBlockPosLen[1]);
+			n++;
+		}
+		putFreeSpaceBlock(newMap, newPos, newLen);
+		n++;
+		newMap.clear();
+
+		journal.log(newPos, newMap);
+
+		if(freeSpaceMap != null)
+			deallocateFreeSpace(freeSpaceMapPosition, freeSpaceMap.capacity());
+		freeSpaceMap = newMap;
+		freeSpaceMapPosition = newPos;
+		compressedDeviceHeader.put("positionToFreeSpace", newPos);
+		compressedDeviceHeader.put("numberFreeSpaces", n);
+		System.out.printf("Moved free space map of %s to position %d for %d blocks\n", fileName, newPos, capacity);
+	}
+
+	/* allocation at the end of the file, for sequential appends */
+	long allocateEndOfFile(int len) throws IOException {
+
+		long fileSize = compressedDeviceHeader.get("fileSize").longValue();
+		long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
+
+		/* positions of the 32 bit format would be truncated */
+		if(!cckd64 && fileSize + len > MAX_FILE_SIZE) {
+			throw new IOException("File " + fileName + " is full, positions beyond 4 GiB need the CCKD64 format");
+		}
+
+		compressedDeviceHeader.put("fileSize", fileSize + len);
+		compressedDeviceHeader.put("fileUsed", fileUsed + len);
+		return fileSize;
+	}
+
+	private long[] readFreeSpaceBlock(int i) throws IOException {
+		ByteBuffer freeSpaceBlock = freeSpaceMap.duplicate().order(byteOrder);
+		freeSpaceBlock.position(FREE_SPACE_MAGIC.length + i * freeSpaceBlockLength);
+		return readFreeSpaceBlock(freeSpaceBlock);
+	}
+
+	private void writeFreeSpaceBlock(int i, long freeSpacePosition, long freeSpaceLength) {
+		if(i < 0 || i >= getFreeSpaceMapCapacity())
+			throw new IllegalStateException("Free space block " + i + " is beyond the free space map of " + fileName);
+
+		int pos = FREE_SPACE_MAGIC.length + i * freeSpaceBlockLength;
+		ByteBuffer freeSpaceBlock = freeSpaceMap.duplicate().order(byteOrder);
+		freeSpaceBlock.position(pos);
+		putFreeSpaceBlock(freeSpaceBlock, freeSpacePosition, freeSpaceLength);
+		freeSpaceBlock.flip();
+		freeSpaceBlock.position(pos);
+		journal.log(freeSpaceMapPosition + pos, freeSpaceBlock);
+	}
+
+	/* the last free space block takes the place of the removed one */
+	private void removeFreeSpaceBlock(int i) throws IOException {
+		int last = compressedDeviceHeader.get("numberFreeSpaces").intValue() - 1;
+		if(i != last) {
+			long[] freeBlockPosLen = readFreeSpaceBlock(last);
+			writeFreeSpaceBlock(i, freeBlockPosLen[0], freeBlockPosLen[1]);
+		}
+		compressedDeviceHeader.put("numberFreeSpaces", last);
+	}
+
+	private void putFreeSpaceBlock(ByteBuffer freeSpaceBlock, long freeSpacePosition, long freeSpaceLength) {
+		if(cckd64) {
+			freeSpaceBlock.putLong(freeSpacePosition);
+			freeSpaceBlock.putLong(freeSpaceLength);
+		} else {
+			freeSpaceBlock.putInt((int) freeSpacePosition);
+			freeSpaceBlock.putInt((int) freeSpaceLength);
+		}
+	}
+
+	private long[] readFreeSpaceBlock(ByteBuffer freeSpaceBlock) throws IOException {
+		if(cckd64)
+			return new long[] {freeSpaceBlock.getLong(), freeSpaceBlock.getLong()};
+		long currentFreeBlockPosition = ByteUtil.u32ToLong(freeSpaceBlock.getInt());
+		long currentFreeBlockLength = ByteUtil.u32ToLong(freeSpaceBlock.getInt());
+		return new long[] {currentFreeBlockPosition, currentFreeBlockLength};
+	}
+
+	/**
+	 * reads the free space map from the file
+	 * @return position and length of the free space blocks, including the block of the free space map itself
+	 * @throws IOException
+	 */
+	List<long[]> readFreeSpaceBlocks() throws IOException {
+		long positionToFreeSpace = compressedDeviceHeader.get("positionToFreeSpace").longValue();
+		int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+		List<long[]> freeSpaceBlocks = new ArrayList<>(noFreeSpaces);
+		if(positionToFreeSpace == 0)
+			return freeSpaceBlocks;
+
+		ByteBuffer bb;
+		if(freeSpaceMap != null) {
+			/* the changes since the last commit are only in memory */
+			bb = freeSpaceMap.duplicate();
+			bb.clear();
+		} else {
+			bb = ByteBuffer.allocate(FREE_SPACE_MAGIC.length + noFreeSpaces * freeSpaceBlockLength);
+			readFully(bb, positionToFreeSpace);
+		}
+		byte[] magic = new byte[FREE_SPACE_MAGIC.length];
+		bb.get(magic);
+		if(!Arrays.equals(FREE_SPACE_MAGIC, magic))
+			throw new IOException("Free space map of " + fileName + " at position " + positionToFreeSpace + " has no FREE_BLK magic");
+
+		bb.order(byteOrder);
+		for(int i = 0; i < noFreeSpaces; i++)
+			freeSpaceBlocks.add(readFreeSpaceBlock(bb));
+		return freeSpaceBlocks;
+	}
+
+	/**
+	 * @param snapshot name of the snapshot or null for the current state
+	 * @return positions of the level 2 tables by level 1 entry, 0 or OTHER_FILE for unused entries
+	 */
+	long[] getLevel2TablePositions(String snapshot) {
+		ByteBuffer level1Table = getLevel1Table(snapshot);
+		int sizeLevel2Table = compressedDeviceHeader.get("sizeLevel2Table").intValue();
+		long[] level2TablePositions = new long[compressedDeviceHeader.get("sizeLevel1Table").intValue()];
+		for(int l1ent = 0; l1ent < level2TablePositions.length; l1ent++)
+			level2TablePositions[l1ent] = readLevel1Entry(level1Table, (long) l1ent * sizeLevel2Table);
+		return level2TablePositions;
+	}
+
+	int getLevel2TableLength() {
+		return compressedDeviceHeader.get("sizeLevel2Table").intValue() * level2EntrySize;
+	}
+
+	/* length of the headers and the level 1 table at the begin of the file */
+	long getHeadersLength() {
+		return level1TablePosition + level1Table.capacity();
+	}
+
+	private ByteBuffer getLevel1Table(String snapshot) {
+		if(snapshot == null)
+			return level1Table;
+		ByteBuffer level1Table = snapshots.get(snapshot);
+		if(level1Table == null)
+			throw new IllegalArgumentException("Unknown snapshot " + snapshot);
+		return level1Table;
+	}
+
+	private Path getSnapshotPath(String snapshot) {
+		return new File(fileName + SNAPSHOT_SUFFIX + snapshot).toPath();
+	}
+
+	private void loadSnapshots() throws IOException {
+		Path path = new File(fileName).getAbsoluteFile().toPath();
+		String prefix = path.getFileName() + SNAPSHOT_SUFFIX;
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(path.getParent(), p -> p.getFileName().toString().startsWith(prefix))) {
+			for(Path p : ds) {
+				String snapshot = p.getFileName().toString().substring(prefix.length());
+				if(snapshot.endsWith(".tmp"))
+					continue;
+
+				ByteBuffer snapshotLevel1Table = ByteBuffer.wrap(Files.readAllBytes(p)).order(byteOrder);
+				if(snapshotLevel1Table.capacity() != level1Table.capacity())
+					throw new IOException("Snapshot " + p + " doesn't match the level 1 table of " + fileName);
+				snapshots.put(snapshot, snapshotLevel1Table);
+			}
+		}
+	}
+
+	Set<String> getSnapshots() {
+		return Collections.unmodifiableSet(snapshots.keySet());
+	}
+
+	/**
+	 * saves a copy of the level 1 table, all changes must be synced before
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	void createSnapshot(String snapshot) throws IOException {
+		if(snapshots.containsKey(snapshot))
+			throw new IllegalArgumentException("Snapshot " + snapshot + " exists already");
+
+		ByteBuffer l1 = level1Table.duplicate();
+		l1.clear();
+		ByteBuffer snapshotLevel1Table = ByteBuffer.allocate(l1.capacity());
+		snapshotLevel1Table.put(l1);
+		snapshotLevel1Table.flip();
+
+		Path path = getSnapshotPath(snapshot);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer bb = snapshotLevel1Table.duplicate();
+			while(bb.hasRemaining())
+				fc.write(bb);
+			fc.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		snapshots.put(snapshot, snapshotLevel1Table.order(byteOrder));
+	}
+
+	/**
+	 * removes a snapshot and frees the level 2 tables and tracks which only the snapshot referenced.
+	 * The space is freed after the next commit, a crash before leaks it at most.
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	void deleteSnapshot(String snapshot) throws IOException {
+		ByteBuffer snapshotLevel1Table = getLevel1Table(snapshot);
+
+		int sizeLevel2Table = compressedDeviceHeader.get("sizeLevel2Table").intValue();
+		int sizeLevel1Table = compressedDeviceHeader.get("sizeLevel1Table").intValue();
+		List<long[]> frees = new ArrayList<>();
+		for(int l1ent = 0; l1ent < sizeLevel1Table; l1ent++) {
+			long firstTrack = (long) l1ent * sizeLevel2Table;
+			long l2BasePos = readLevel1Entry(snapshotLevel1Table, firstTrack);
+			if(l2BasePos == 0 || l2BasePos == OTHER_FILE || isLevel2TableReferenced(firstTrack, l2BasePos, snapshot))
+				continue;
+
+			ByteBuffer level2Entries = readLevel2Table(l2BasePos, 0, sizeLevel2Table);
+			for(int i = 0; i < sizeLevel2Table; i++) {
+				Map<String, Number> l2Entry = readLevel2Entry(level2Entries);
+				long pos = l2Entry.get("position").longValue();
+				if(pos == 0 || pos == OTHER_FILE || isTrackReferenced(firstTrack + i, pos, snapshot))
+					continue;
+				frees.add(new long[] {pos, l2Entry.get("size").intValue()});
+			}
+			frees.add(new long[] {l2BasePos, level2Entries.capacity()});
+		}
+
+		snapshots.remove(snapshot);
+		Files.deleteIfExists(getSnapshotPath(snapshot));
+
+		long freed = 0;
+		for(long[] free : frees) {
+			deallocateFreeSpace(free[0], (int) free[1]);
+			freed += free[1];
+		}
+		System.out.printf("Deleted snapshot %s of %s - freed %d bytes\n", snapshot, fileName, freed);
+	}
+
+	/* level 2 table is referenced by the current state or a snapshot other than except */
+	private boolean isLevel2TableReferenced(long trk, long l2BasePos, String except) {
+		return readLevel1Entry(trk) == l2BasePos || isLevel2TableShared(trk, l2BasePos, except);
+	}
+
+	/* track is referenced by the current state or a snapshot */
+	boolean isTrackReferenced(long trk, long pos) throws IOException {
+		return isTrackReferenced(trk, pos, null);
+	}
+
+	private boolean isTrackReferenced(long trk, long pos, String except) throws IOException {
+		long l2BasePos = readLevel1Entry(trk);
+		if(l2BasePos != 0 && l2BasePos != OTHER_FILE && readLevel2Entry(l2BasePos, trk).get("position").longValue() == pos)
+			return true;
+		return isTrackShared(trk, pos, except);
+	}
+
+	/* level 2 table is referenced by a snapshot other than except */
+	private boolean isLevel2TableShared(long trk, long l2BasePos, String except) {
+		for(Map.Entry<String, ByteBuffer> e : snapshots.entrySet()) {
+			if(!e.getKey().equals(except) && readLevel1Entry(e.getValue(), trk) == l2BasePos)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param trk
+	 * @param pos position of the track data
+	 * @return true if a snapshot references the track data, it must not be overwritten or freed then
+	 * @throws IOException
+	 */
+	boolean isTrackShared(long trk, long pos) throws IOException {
+		return isTrackShared(trk, pos, null);
+	}
+
+	private boolean isTrackShared(long trk, long pos, String except) throws IOException {
+		for(Map.Entry<String, ByteBuffer> e : snapshots.entrySet()) {
+			if(e.getKey().equals(except))
+				continue;
+			long l2BasePos = readLevel1Entry(e.getValue(), trk);
+			if(l2BasePos == 0 || l2BasePos == OTHER_FILE)
+				continue;
+			if(readLevel2Entry(l2BasePos, trk).get("position").longValue() == pos)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * copy on write of a level 2 table which is referenced by a snapshot
+	 * @param trk
+	 * @param l2BasePos
+	 * @return position of the level 2 table which can be updated
+	 * @throws IOException
+	 */
+	long getWritableLevel2Table(long trk, long l2BasePos) throws IOException {
+		if(!isLevel2TableShared(trk, l2BasePos, null))
+			return l2BasePos;
+
+		ByteBuffer level2Table = readLevel2Table(l2BasePos, 0, compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		long newL2BasePos = allocateFreeSpace(level2Table.limit());
+		writeLevel2Table(newL2BasePos, level2Table);
+		writeLevel1Entry(trk, newL2BasePos);
+		return newL2BasePos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!readOnly) {
+			/* the second sync commits the space which is freed by the first one */
+			sync();
+			sync();
+			checkpoint();
+			journal.close();
+		}
+		asyncChannel.close();
+		channel.close();
+	}
+
+	private ByteBuffer createCompressedDiskHeader(Map<String, Number> compressedDeviceHeader) {
+
+		ByteBuffer cdh = ByteBuffer.allocate(512).order(byteOrder);
+		cdh.put(compressedDeviceHeader.get("v").byteValue());
+		cdh.put(compressedDeviceHeader.get("r").byteValue());
+		cdh.put(compressedDeviceHeader.get("m").byteValue());
+		cdh.put(compressedDeviceHeader.get("options").byteValue());
+		cdh.putInt(compressedDeviceHeader.get("sizeLevel1Table").intValue());
+		cdh.putInt(compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		if(cckd64) {
+			cdh.putInt(0); // padding
+			cdh.putLong(compressedDeviceHeader.get("fileSize").longValue());
+			cdh.putLong(compressedDeviceHeader.get("fileUsed").longValue());
+			cdh.putLong(compressedDeviceHeader.get("positionToFreeSpace").longValue());
+			cdh.putLong(compressedDeviceHeader.get("totalFreeSpace").longValue());
+			cdh.putLong(compressedDeviceHeader.get("largestFreeSpace").longValue());
+			cdh.putLong(compressedDeviceHeader.get("numberFreeSpaces").longValue());
+			cdh.putLong(compressedDeviceHeader.get("imbeddedFreeSpace").longValue());
+		} else {
+			cdh.putInt(compressedDeviceHeader.get("fileSize").intValue());
+			cdh.putInt(compressedDeviceHeader.get("fileUsed").intValue());
+			cdh.putInt(compressedDeviceHeader.get("positionToFreeSpace").intValue());
+			cdh.putInt(compressedDeviceHeader.get("totalFreeSpace").intValue());
+			cdh.putInt(compressedDeviceHeader.get("largestFreeSpace").intValue());
+			cdh.putInt(compressedDeviceHeader.get("numberFreeSpaces").intValue());
+			cdh.putInt(compressedDeviceHeader.get("imbeddedFreeSpace").intValue());
+		}
+		cdh.putInt(compressedDeviceHeader.get("noCylindersOnDevice").intValue());
+		cdh.put(compressedDeviceHeader.get("nullTrackFormat").byteValue());
+		cdh.put(compressedDeviceHeader.get("compressAlgorithm").byteValue());
+		cdh.putShort(compressedDeviceHeader.get("compressParameter").shortValue());
+		cdh.rewind();
+		return cdh;
+	}
+
+	/**
+	 * makes all writes durable: the track data is forced to disk first, then the metadata
+	 * changes are committed to the journal and written into the image. The journal is
+	 * checkpointed when it grows too large. The space freed until now can be reused after
+	 * the commit, it's freed in the next transaction.
+	 * @throws IOException
+	 */
+	void sync() throws IOException {
+		if(readOnly)
+			return;
+
+		this.channel.force(false);
+		journal.log(512, createCompressedDiskHeader(compressedDeviceHeader));
+		journal.commit(channel);
+		level2Tables.clear();
+
+		if(journal.size() > JOURNAL_CHECKPOINT_SIZE) {
+			checkpoint();
+		}
+		freePendingSpace();
+	}
+
+	/* the uncommitted updates should be synced, a client which never flushes would let them grow without bound */
+	boolean isSyncDue() {
+		return !readOnly && (journal.pendingSize() > SYNC_PENDING_SIZE || level2Tables.size() > SYNC_PENDING_LEVEL2_TABLES);
+	}
+
+	/* force the committed metadata in the image and discard the journal */
+	private void checkpoint() throws IOException {
+		this.channel.force(true);
+		journal.reset();
+	}
+}
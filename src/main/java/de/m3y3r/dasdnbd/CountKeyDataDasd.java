@@ -3,17 +3,38 @@ package de.m3y3r.dasdnbd;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -25,32 +46,77 @@ public class CountKeyDataDasd implements Closeable {
 
 	private static final long SECTORS_PER_TRACK = 12;
 	private static final long SECTOR_SIZE = 4096;
-	private static final int FREE_SPACE_BLOCK_LENGTH = 8;
-	private static final int L2_ENTRY_SIZE = 8;
-
-	private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
-	private FileChannel channel;
+	static final int TRACK_DATA_SIZE = (int) (SECTORS_PER_TRACK * SECTOR_SIZE); // bytes of a track in a dataset
+	private static final int MIN_COMPRESSION_SAVINGS = Integer.getInteger("dasdnbd.minCompressionSavings", 10); // percent
+	private static final int UNCOMPRESSED_TRACK_LENGTH = (int) (5 + 8 + 8 + SECTORS_PER_TRACK * (8 + SECTOR_SIZE) + 8);
+	private static final int MAX_READ_GAP = 4096; /* tracks less apart are read with a single read */
+	private static final int MAX_COALESCED_READ = 1024 * 1024;
+	private static final long TRACK_CACHE_SIZE = 64 * 1024 * 1024;
+	private static final long HEAT_MAP_SAVE_INTERVAL = 5; // minutes
+	private static final int MAX_PREFETCH_IN_FLIGHT = 16;
+	private static final int MAX_IMPORT_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+	private static final int MAX_SCRUB_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+	private static final int SCRUB_READ_SIZE = 1024 * 1024;
+	private static final int MIRROR_SYNC_TRACKS = 64; // tracks copied at once by the initial sync of a mirror
+	/* extent types of the scrub, extents of tracks have the track number instead */
+	private static final long EXTENT_HEADERS = -1, EXTENT_LEVEL2_TABLE = -2, EXTENT_FREE_SPACE_MAP = -3, EXTENT_FREE_SPACE = -4;
+	private static final char SNAPSHOT_SEPARATOR = '@'; // exports of snapshots are named <dataset>@<snapshot>
+	private static final String CHECKPOINT_SUFFIX = ".dirty."; // sidecar files of the dirty track bitmaps
+
+	private List<CompressedCkdFile> files;
 	private Map<String, Object> deviceHeader;
 	private Map<String, Number> compressedDeviceHeader;
-	private MappedByteBuffer level1Table;
 	private Charset ebcdicCharset;
-	private Map<String, Map<String, Number>> partitions;
-	private MappedByteBuffer freeSpaceMap;
+	private Map<String, DatasetExtents> partitions;
+	private ExecutorService completionExecutor;
+	private final StampedLock lock = new StampedLock();
+	private TrackCache trackCache;
+	private TrackHeatMap heatMap;
+	private final Map<String, DirtyTrackBitmap> checkpoints = new ConcurrentHashMap<>(); // tracks written since the checkpoint
+	private volatile RequestScheduler scheduler; // background I/O is queued behind the client requests
+	private volatile ImageMirror mirror; // set and cleared with the write lock
+	private ScheduledExecutorService backgroundExecutor;
+	private Deflater deflater; // writes are exclusive
+	private final Map<String, Number> compressionStatistics = new HashMap<>();
+	private final boolean readOnly; // no writes, reads need no lock
 
 	public CountKeyDataDasd(String dasdFileName) throws IOException {
+		this(dasdFileName, false);
+	}
+
+	public CountKeyDataDasd(String dasdFileName, boolean readOnly) throws IOException {
 		ebcdicCharset = Charset.forName("IBM-037");
 		partitions = new HashMap<>();
+		this.readOnly = readOnly;
 
 		openCkdImage(dasdFileName);
 	}
 
 	private void openCkdImage(String fname) throws IOException {
-		File ckdFile = new File(fname);
-		channel = FileChannel.open(ckdFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		/* track reads are completed and decompressed by this executor */
+		completionExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread t = new Thread(r, "ckd-io");
+			t.setDaemon(true);
+			return t;
+		});
 
-		deviceHeader = readDeviceHeader();
-		compressedDeviceHeader = readCompressedDeviceHeader();
-		level1Table = mapLevel1Table((int) compressedDeviceHeader.get("sizeLevel1Table"));
+		/* the files of a multi file image hold consecutive cylinder ranges, the last file has no highest cylinder */
+		files = new ArrayList<>();
+		CompressedCkdFile file = new CompressedCkdFile(fname, completionExecutor, readOnly);
+		files.add(file);
+		deviceHeader = file.getDeviceHeader();
+		compressedDeviceHeader = file.getCompressedDeviceHeader();
+		if((byte) deviceHeader.get("fileSequenceNo") == 1) {
+			for(int seq = 2; ; seq++) {
+				int highestCylinder = ByteUtil.u16ToInt((short) file.getDeviceHeader().get("highesCylinderOrNull"));
+				if(highestCylinder == 0) break;
+
+				file = new CompressedCkdFile(getSequenceFileName(fname, seq), completionExecutor, readOnly);
+				file.setFirstTrack(getTrackNo(highestCylinder + 1, (short) 0));
+				files.add(file);
+			}
+			System.out.printf("Opened image of %d files\n", files.size());
+		}
 
 		ByteBuffer nullTrack = readTrack(0, 0);
 
@@ -70,24 +136,137 @@ public class CountKeyDataDasd implements Closeable {
 			// add all partitions
 			processDatasetControlBlock(vtocRecord);
 		}
+
+		/* warm up the track cache with the tracks which were hot before */
+		trackCache = new TrackCache(TRACK_CACHE_SIZE);
+		int noTracks = compressedDeviceHeader.get("noCylindersOnDevice").intValue() * (int) deviceHeader.get("noHeads");
+		heatMap = new TrackHeatMap(new File(fname + ".heat").toPath(), noTracks);
+		heatMap.load();
+		loadCheckpoints(noTracks);
+
+		backgroundExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ckd-background");
+			t.setDaemon(true);
+			return t;
+		});
+		backgroundExecutor.execute(() -> {
+			try {
+				prefetchTracks(heatMap.getHottestTracks(trackCache.getCapacity((int) deviceHeader.get("trackSize"))));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		if(!readOnly) {
+			backgroundExecutor.scheduleWithFixedDelay(() -> {
+				try {
+					heatMap.save();
+					/* keeps the logs of the dirty track bitmaps short */
+					for(DirtyTrackBitmap dirtyTracks : checkpoints.values())
+						dirtyTracks.save();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, HEAT_MAP_SAVE_INTERVAL, HEAT_MAP_SAVE_INTERVAL, TimeUnit.MINUTES);
+		}
 	}
 
-	private void processDatasetControlBlock(ByteBuffer[] vtocRecord) {
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/* readers of a read-only image don't lock at all, the stamp is 0 then */
+	private long readLock() {
+		return readOnly ? 0 : lock.readLock();
+	}
+
+	private void unlockRead(long stamp) {
+		if(stamp != 0)
+			lock.unlockRead(stamp);
+	}
+
+	/**
+	 * @param fname name of the first file of the image, the sequence number is the last character before the suffix
+	 * @param seq
+	 * @return name of the file with the sequence number
+	 */
+	private static String getSequenceFileName(String fname, int seq) {
+		int suffix = fname.lastIndexOf('.');
+		if(suffix <= fname.lastIndexOf(File.separatorChar))
+			suffix = fname.length();
+		if(suffix == 0 || fname.charAt(suffix - 1) != '1')
+			throw new IllegalArgumentException("First file name of multi file image must end with 1: " + fname);
+		return fname.substring(0, suffix - 1) + seq + fname.substring(suffix);
+	}
+
+	private void processDatasetControlBlock(ByteBuffer[] vtocRecord) throws IOException {
 		byte fmtId = vtocRecord[1].get();
 		switch(fmtId) {
-		/* we are actually only interested in DSCB1 entries */
+		/* we are actually only interested in DSCB1 entries, DSCB3 entries are read by their DSCB1 */
 		case (byte) 0xf1: 
 			Map<String, Object> f1 = readFormat1(vtocRecord[1]);
-			byte[] dsExt1 = (byte[]) f1.get("dsExt1");
-			Map<String, Number> dsExt1s = readDatasetExtent(dsExt1);
-			dsExt1s.put("sectorSize", (int) f1.get("blockLength"));
 			String datasetName = new String(vtocRecord[0].array(), ebcdicCharset).trim();
-			partitions.put(datasetName, dsExt1s);
+			int noExtents = ((Number) f1.get("noExtents")).intValue() & 0xff;
+
+			List<Map<String, Number>> extents = new ArrayList<>();
+			for(String dsExt : new String[] { "dsExt1", "dsExt2", "dsExt3" })
+				extents.add(readDatasetExtent((byte[]) f1.get(dsExt)));
+			if(noExtents > 3)
+				readFormat3Extents((byte[]) f1.get("cchhrF2F3DSCB"), extents);
+
+			List<long[]> tracks = new ArrayList<>();
+			for(Map<String, Number> e : extents) {
+				if(tracks.size() == noExtents) break;
+				if(e.get("type").byteValue() == 0) continue; // unused extent
+				tracks.add(new long[] {
+					getTrackNo(e.get("beginCylinder").longValue(), (short) e.get("beginTrack").intValue()),
+					getTrackNo(e.get("endCylinder").longValue(), (short) e.get("endTrack").intValue()) });
+			}
+			if(tracks.isEmpty()) {
+				System.out.printf("Dataset %s has no extents\n", datasetName);
+				break;
+			}
+			if(tracks.size() < noExtents)
+				System.out.printf("Dataset %s has %d extents, found %d\n", datasetName, noExtents, tracks.size());
+			partitions.put(datasetName, new DatasetExtents(tracks));
 			break;
 		default:
 		}
 	}
 
+	/*
+	 * reads the extents of the chain of DSCB3, 4 extents in the key after the key id and 9 extents
+	 * in the data after the format id, followed by the CCHHR of the next DSCB3
+	 */
+	private void readFormat3Extents(byte[] cchhr, List<Map<String, Number>> extents) throws IOException {
+		for(int n = 0; n < 255; n++) {
+			ByteBuffer ptr = ByteBuffer.wrap(cchhr);
+			int cylinder = ByteUtil.u16ToInt(ptr.getShort());
+			int head = ByteUtil.u16ToInt(ptr.getShort());
+			int recordNo = ptr.get() & 0xff;
+			if(cylinder == 0 && head == 0 && recordNo == 0)
+				return;
+
+			ByteBuffer[] f3 = readRecord(readTrack(cylinder, head), recordNo);
+			if(f3 == null || f3[1].get(0) != (byte) 0xf3) {
+				System.out.printf("No DSCB3 at cylinder %d head %d record %d\n", cylinder, head, recordNo);
+				return;
+			}
+			f3[0].position(4);
+			for(int i = 0; i < 4; i++)
+				extents.add(readDatasetExtent(readBytes(f3[0], 10)));
+			f3[1].position(1);
+			for(int i = 0; i < 9; i++)
+				extents.add(readDatasetExtent(readBytes(f3[1], 10)));
+			cchhr = readBytes(f3[1], 5);
+		}
+	}
+
+	private static byte[] readBytes(ByteBuffer bb, int n) {
+		byte[] ba = new byte[n];
+		bb.get(ba);
+		return ba;
+	}
+
 	private Map<String, Number> readDatasetExtent(byte[] dsExt) {
 		ByteBuffer bb = ByteBuffer.wrap(dsExt);
 
@@ -204,6 +383,24 @@ public class CountKeyDataDasd implements Closeable {
 		});
 	}
 
+	/**
+	 * @param trackData trackdata without track header
+	 * @param recordNo which record to read
+	 * @return view of the data of the record, the data isn't copied
+	 */
+	private ByteBuffer getRecordData(ByteBuffer trackData, int recordNo) {
+		return (ByteBuffer) processRecord(trackData, recordNo, (rh, t) -> {
+			int begin = t.position() + rh.get("keyLength").intValue();
+			int end = begin + rh.get("dataLength").intValue();
+
+			ByteBuffer data = t.duplicate();
+			data.limit(end);
+			data.position(begin);
+			t.position(end);
+			return data;
+		});
+	}
+
 	private void updateRecord(ByteBuffer trackData, int recordNo, ByteBuffer[] keyData) {
 		/*FIXME: what happens when the key and data length are shorter then the
 		 * existing ones? I think this will totally fuck up the track data
@@ -261,57 +458,6 @@ public class CountKeyDataDasd implements Closeable {
 		return s;
 	}
 
-	private MappedByteBuffer mapLevel1Table(int level1TableSize) throws IOException {
-		MappedByteBuffer level1Table = channel.map(MapMode.READ_WRITE, channel.position(), level1TableSize * Integer.BYTES);
-		level1Table.order(byteOrder);
-		return level1Table;
-	}
-
-	private Map<String, Object> readDeviceHeader() throws IOException {
-		ByteBuffer bb = read(512);
-
-		Map<String, Object> s = new HashMap<>();
-		byte[] deviceId = new byte[8];
-		bb.get(deviceId);
-		s.put("deviceId", new String(deviceId, "US-ASCII"));
-		s.put("noHeads", bb.getInt());
-		s.put("trackSize", bb.getInt());
-		s.put("deviceType", bb.get());
-		s.put("fileSequenceNo", bb.get());
-		s.put("highesCylinderOrNull", bb.getShort());
-		return s;
-	}
-
-	private Map<String, Number> readCompressedDeviceHeader() throws IOException {
-		ByteBuffer bb = read(512);
-
-		Map<String, Number> s = new HashMap<>();
-		s.put("v", bb.get());
-		s.put("r", bb.get());
-		s.put("m", bb.get());
-		s.put("options", bb.get());
-
-		/* option flags */
-		if((s.get("options").byteValue() & 2) == 1)
-			byteOrder = ByteOrder.BIG_ENDIAN;
-		bb.order(byteOrder);
-
-		s.put("sizeLevel1Table", bb.getInt());
-		s.put("sizeLevel2Table", bb.getInt());
-		s.put("fileSize", ByteUtil.u32ToLong(bb.getInt()));
-		s.put("fileUsed", ByteUtil.u32ToLong(bb.getInt()));
-		s.put("positionToFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
-		s.put("totalFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
-		s.put("largestFreeSpace", ByteUtil.u32ToLong(bb.getInt()));
-		s.put("numberFreeSpaces", bb.getInt());
-		s.put("imbeddedFreeSpace", ByteUtil.u32ToLong(bb.getInt())); //FIXME: what is this field?!
-		s.put("noCylindersOnDevice", bb.getInt());
-		s.put("nullTrackFormat", bb.get());
-		s.put("compressAlgorithm", bb.get());
-		s.put("compressParameter", bb.getShort());
-		return s;
-	}
-
 	/* Track is:
 	 *  - Track header 1
 	 *    - Record header (1-n)
@@ -319,20 +465,6 @@ public class CountKeyDataDasd implements Closeable {
 	 *    - data 0-1
 	 *  - end of track marker
 	 */
-	private ByteBuffer read(int noBytes) throws IOException {
-		return read(noBytes, byteOrder);
-	}
-
-	private ByteBuffer read(int noBytes, ByteOrder byteOrder) throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(noBytes);
-
-		//FIXME: check read len vs. requestes len
-		int len = channel.read(bb);
-		bb.flip();
-		bb.order(byteOrder);
-		return bb;
-	}
-
 	/**
 	 * reads a track without track header
 	 * @param track
@@ -341,30 +473,244 @@ public class CountKeyDataDasd implements Closeable {
 	 */
 	ByteBuffer readTrack(long track) throws IOException {
 
-		long l2BasePos = readLevel1Entry(track);
-		if(l2BasePos == 0) {
-			/* empty L2 table, L2 table not yet used...! */
-			return createNullTrack(track, compressedDeviceHeader.get("nullTrackFormat").intValue());
-		}
-
-		Map<String, Number> l2Entry = readLevel2Entry(l2BasePos, track);
+		Map<String, Number> l2Entry = readLevel2Entry(track);
 		long posTrack = l2Entry.get("position").longValue();
-
-		/* FIXME:
-		 * posTrack == 0 - Unused track?! Not yet used?
-		 * posTrack == 0xffffffff - Track is not in this file?!
-		 */
 		if(posTrack == 0) {
 			/* length and size field are mis-used for "null track format information... */
 			return createNullTrack(track, l2Entry.get("length").intValue());
 		}
 
-		channel.position(posTrack);
-		Map<String, Number> trackHeader = readTrackHeader();
 		int trackLen = l2Entry.get("length").intValue();
+		CompressedCkdFile file = files.get(l2Entry.get("file").intValue());
+		System.out.printf("Read track %d - file %s - fromPos %d - toPos %d - len %d\n", track, file.getFileName(), posTrack, posTrack + trackLen - 1, trackLen);
+		ByteBuffer compressedTrack = ByteBuffer.allocate(trackLen);
+		file.readFully(compressedTrack, posTrack);
+		return decodeTrack(track, compressedTrack);
+	}
+
+	/**
+	 * reads a track without track header asynchronously, the track is decompressed in the
+	 * completion stage of the read
+	 * @param track
+	 * @return
+	 */
+	CompletableFuture<ByteBuffer> readTrackAsync(long track) {
+		return readTracksAsync(track, 1).get(0);
+	}
+
+	/**
+	 * reads consecutive tracks without track header asynchronously.
+	 * The level 2 entries of all tracks are resolved first, tracks which are stored
+	 * physically adjacent in the same file are read with a single read and decompressed in parallel.
+	 * @param firstTrack
+	 * @param noTracks
+	 * @return
+	 */
+	List<CompletableFuture<ByteBuffer>> readTracksAsync(long firstTrack, int noTracks) {
+		return readTracksAsync(firstTrack, noTracks, null);
+	}
+
+	/**
+	 * @param firstTrack
+	 * @param noTracks
+	 * @param snapshot name of the snapshot or null for the current state, tracks of snapshots are not cached
+	 * @return
+	 */
+	private List<CompletableFuture<ByteBuffer>> readTracksAsync(long firstTrack, int noTracks, String snapshot) {
+		List<CompletableFuture<ByteBuffer>> tracks = new ArrayList<>(noTracks);
+
+		List<Map<String, Number>> l2Entries;
+		try {
+			l2Entries = readLevel2Entries(firstTrack, noTracks, snapshot);
+		} catch(IOException | RuntimeException e) {
+			for(int t = 0; t < noTracks; t++) {
+				CompletableFuture<ByteBuffer> f = new CompletableFuture<>();
+				f.completeExceptionally(e);
+				tracks.add(f);
+			}
+			return tracks;
+		}
+
+		List<Integer> storedTracks = new ArrayList<>();
+		for(int t = 0; t < noTracks; t++) {
+			Map<String, Number> l2Entry = l2Entries.get(t);
+			ByteBuffer cachedTrack = snapshot == null ? trackCache.get(firstTrack + t) : null;
+			if(cachedTrack != null) {
+				tracks.add(CompletableFuture.completedFuture(cachedTrack));
+			} else if(l2Entry.get("position").longValue() == 0) {
+				/* length and size field are mis-used for "null track format information... */
+				tracks.add(CompletableFuture.completedFuture(createNullTrack(firstTrack + t, l2Entry.get("length").intValue())));
+			} else {
+				tracks.add(new CompletableFuture<>());
+				storedTracks.add(t);
+			}
+		}
+
+		/* plan reads in physical order per file, merge adjacent tracks */
+		storedTracks.sort(Comparator.<Integer>comparingInt(t -> l2Entries.get(t).get("file").intValue())
+				.thenComparingLong(t -> l2Entries.get(t).get("position").longValue()));
+		for(int i = 0; i < storedTracks.size(); ) {
+			int fileIndex = l2Entries.get(storedTracks.get(i)).get("file").intValue();
+			long readPos = l2Entries.get(storedTracks.get(i)).get("position").longValue();
+			long readEnd = readPos + l2Entries.get(storedTracks.get(i)).get("length").intValue();
+
+			int j = i + 1;
+			for(; j < storedTracks.size(); j++) {
+				long pos = l2Entries.get(storedTracks.get(j)).get("position").longValue();
+				long end = pos + l2Entries.get(storedTracks.get(j)).get("length").intValue();
+				if(l2Entries.get(storedTracks.get(j)).get("file").intValue() != fileIndex
+						|| pos < readEnd || pos - readEnd > MAX_READ_GAP || end - readPos > MAX_COALESCED_READ)
+					break;
+				readEnd = end;
+			}
+
+			List<Integer> run = storedTracks.subList(i, j);
+			CompressedCkdFile file = files.get(fileIndex);
+			System.out.printf("Read tracks %s - file %s - fromPos %d - toPos %d - len %d\n", run, file.getFileName(), readPos, readEnd - 1, readEnd - readPos);
+			file.readAsync(readPos, ByteBuffer.allocate((int) (readEnd - readPos))).whenComplete((bb, e) -> {
+				for(int t : run) {
+					CompletableFuture<ByteBuffer> f = tracks.get(t);
+					if(e != null) {
+						f.completeExceptionally(e);
+						continue;
+					}
+
+					Map<String, Number> l2Entry = l2Entries.get(t);
+					ByteBuffer compressedTrack = bb.duplicate();
+					compressedTrack.position((int) (l2Entry.get("position").longValue() - readPos));
+					compressedTrack.limit(compressedTrack.position() + l2Entry.get("length").intValue());
+					ByteBuffer ct = compressedTrack.slice();
+
+					/* decompress the tracks of a merged read in parallel */
+					Runnable decode = () -> {
+						try {
+							ByteBuffer trackData = decodeTrack(firstTrack + t, ct);
+							if(snapshot == null)
+								trackCache.put(firstTrack + t, trackData);
+							f.complete(trackData.duplicate());
+						} catch(RuntimeException re) {
+							f.completeExceptionally(re);
+						}
+					};
+					if(run.size() > 1)
+						completionExecutor.execute(decode);
+					else
+						decode.run();
+				}
+			});
+			i = j;
+		}
+		return tracks;
+	}
+
+	/**
+	 * reads tracks into the track cache, in the order of their file position
+	 * @param tracks
+	 * @throws IOException
+	 */
+	void prefetchTracks(long[] tracks) throws IOException {
+		List<long[]> trackPositions = new ArrayList<>();
+		long stamp = readLock();
+		try {
+			for(long track : tracks) {
+				if(trackCache.contains(track))
+					continue;
+				Map<String, Number> l2Entry = readLevel2Entry(track);
+				long pos = l2Entry.get("position").longValue();
+				if(pos != 0)
+					trackPositions.add(new long[] {track, l2Entry.get("file").longValue(), pos});
+			}
+		} finally {
+			unlockRead(stamp);
+		}
+		trackPositions.sort(Comparator.<long[]>comparingLong(tp -> tp[1]).thenComparingLong(tp -> tp[2]));
+
+		System.out.printf("Prefetching %d tracks\n", trackPositions.size());
+		Semaphore inFlight = new Semaphore(MAX_PREFETCH_IN_FLIGHT);
+		int trackSize = (int) deviceHeader.get("trackSize");
+		for(long[] tp : trackPositions) {
+			inFlight.acquireUninterruptibly();
+			submitBackground(tp[1] << 48 | tp[2], trackSize, () -> {
+				long readStamp = readLock();
+				return readTrackAsync(tp[0]).whenComplete((trackData, e) -> unlockRead(readStamp));
+			}).whenComplete((trackData, e) -> inFlight.release());
+		}
+		inFlight.acquireUninterruptibly(MAX_PREFETCH_IN_FLIGHT);
+	}
+
+	/**
+	 * reads the tracks of a request, a request within a single uncompressed track only reads
+	 * the requested records
+	 * @param firstTrack
+	 * @param noTracks
+	 * @param firstRecord first requested record of the first track
+	 * @param lastRecord last requested record of the last track
+	 * @param snapshot
+	 * @return
+	 * @throws IOException
+	 */
+	private List<CompletableFuture<ByteBuffer>> readTracksAsync(long firstTrack, int noTracks, int firstRecord, int lastRecord, String snapshot) throws IOException {
+		if(noTracks == 1 && snapshot == null && !trackCache.contains(firstTrack)) {
+			CompletableFuture<ByteBuffer> records = readUncompressedRecordsAsync(firstTrack, firstRecord, lastRecord);
+			if(records != null)
+				return Collections.singletonList(records);
+		}
+		return readTracksAsync(firstTrack, noTracks, snapshot);
+	}
+
+	/**
+	 * reads only some records of a track which is stored uncompressed with a single read. For the fixed
+	 * record layout of null format 2 the position of a record within the track is known. The length
+	 * of the level 2 entry is trusted to be an uncompressed track, the whole track is read when the
+	 * record headers don't match.
+	 * @param track
+	 * @param firstRecord
+	 * @param lastRecord
+	 * @return records with record header followed by an end of track marker, or null if the
+	 * track isn't stored uncompressed
+	 * @throws IOException
+	 */
+	private CompletableFuture<ByteBuffer> readUncompressedRecordsAsync(long track, int firstRecord, int lastRecord) throws IOException {
+		Map<String, Number> l2Entry = readLevel2Entry(track);
+		long posTrack = l2Entry.get("position").longValue();
+		if(posTrack == 0 || l2Entry.get("length").intValue() != UNCOMPRESSED_TRACK_LENGTH)
+			return null;
 
-		System.out.printf("Read track %d - fromPos %d - toPos %d - len %d\n", track, posTrack, posTrack + trackLen - 1, trackLen);
-		ByteBuffer trackData = read(trackLen - 5);
+		/* track header + record 0, then the records */
+		int recordLen = (int) (8 + SECTOR_SIZE);
+		long posRecords = posTrack + 5 + 8 + 8 + (firstRecord - 1) * recordLen;
+		int len = (lastRecord - firstRecord + 1) * recordLen;
+		CompressedCkdFile file = files.get(l2Entry.get("file").intValue());
+		System.out.printf("Read records %d-%d of track %d - fromPos %d - toPos %d - len %d\n", firstRecord, lastRecord, track, posRecords, posRecords + len - 1, len);
+
+		long[] ch = cylHeadFromTrack(track);
+		ByteBuffer records = ByteBuffer.allocate(len + 8);
+		records.limit(len);
+		return file.readAsync(posRecords, records).thenApply(r -> {
+			/* check the record headers, then add the end of track marker */
+			r.order(ByteOrder.BIG_ENDIAN);
+			for(int i = 0; i <= lastRecord - firstRecord; i++) {
+				int pos = i * recordLen;
+				if(ByteUtil.u16ToInt(r.getShort(pos)) != ch[0] || ByteUtil.u16ToInt(r.getShort(pos + 2)) != ch[1]
+						|| (r.get(pos + 4) & 0xff) != firstRecord + i || r.get(pos + 5) != 0 || ByteUtil.u16ToInt(r.getShort(pos + 6)) != SECTOR_SIZE)
+					return null;
+			}
+			r.limit(len + 8);
+			r.putLong(len, -1);
+			return r;
+		}).thenCompose(r -> r != null ? CompletableFuture.completedFuture(r) : readTrackAsync(track));
+	}
+
+	/**
+	 * decompresses a track
+	 * @param track
+	 * @param compressedTrack track header and compressed track data
+	 * @return track data without track header
+	 * @throws IllegalStateException if the compressed data is corrupt
+	 */
+	private ByteBuffer decodeTrack(long track, ByteBuffer compressedTrack) {
+		Map<String, Number> trackHeader = readTrackHeader(compressedTrack);
+		ByteBuffer trackData = compressedTrack.slice();
 
 		int optComp = trackHeader.get("options").intValue() & 0xf;
 		switch(optComp) {
@@ -373,26 +719,28 @@ public class CountKeyDataDasd implements Closeable {
 
 		case 1:
 			Inflater i = new Inflater();
-			i.setInput(trackData.array(), 0, trackData.limit());
+			i.setInput(trackData.array(), trackData.arrayOffset(), trackData.limit());
 			ByteBuffer ud = ByteBuffer.allocate((int) Math.pow(2, 16));
 			byte[] buffer = new byte[1024];
 			try {
 				while(!i.finished()) {
 					int len = i.inflate(buffer);
-					assert len >= 0 : "invalid compressed data";
+					if(len == 0 && (i.needsInput() || i.needsDictionary()))
+						throw new DataFormatException("truncated compressed data");
+					if(len > ud.remaining())
+						throw new DataFormatException("track data longer than " + ud.capacity() + " bytes");
 					ud.put(buffer, 0, len);
 				}
 				ud.flip();
 				return ud;
 			} catch (DataFormatException e) {
-				e.printStackTrace();
+				throw new IllegalStateException("Invalid compressed data of trackNo " + track + ": " + e.getMessage(), e);
+			} finally {
+				i.end();
 			}
-			break;
 		default:
 			throw new IllegalArgumentException("Unknonw compression method " + optComp + " for trackNo "+ track); 
 		}
-
-		return null;
 	}
 
 	public ByteBuffer readTrack(long cylinder, int head) throws IOException {
@@ -430,6 +778,32 @@ public class CountKeyDataDasd implements Closeable {
 		return trackData;
 	}
 
+	/**
+	 * @param track
+	 * @param sectors data of all sectors of the track
+	 * @return track in the null format 2 layout with the sector data
+	 */
+	private ByteBuffer createTrack(long track, ByteBuffer sectors) {
+		ByteBuffer trackData = ByteBuffer.allocate((int)deviceHeader.get("trackSize"));
+
+		long ch[] = cylHeadFromTrack(track);
+		int cylinder = (int) ch[0];
+		short head = (short) ch[1];
+
+		writeRecord(trackData, cylinder, head, (short) 0, null, ByteBuffer.allocate(8));
+		for(short r = 1; r <= SECTORS_PER_TRACK; r++) {
+			ByteBuffer sector = sectors.duplicate();
+			sector.position((int) ((r - 1) * SECTOR_SIZE));
+			sector.limit((int) (r * SECTOR_SIZE));
+			writeRecord(trackData, cylinder, head, r, null, sector.slice());
+		}
+		/* add end of track marker */
+		trackData.putLong(-1);
+
+		trackData.flip();
+		return trackData;
+	}
+
 	private long[] cylHeadFromTrack(long track) {
 		int noHeadsPerCylinder = (int)deviceHeader.get("noHeads");
 		long cyl = track / noHeadsPerCylinder;
@@ -455,8 +829,8 @@ public class CountKeyDataDasd implements Closeable {
 		trackData.putShort((short) dl);
 	}
 
-	private Map<String, Number> readTrackHeader() throws IOException {
-		ByteBuffer trackHeader = read(5, ByteOrder.BIG_ENDIAN);
+	private Map<String, Number> readTrackHeader(ByteBuffer trackHeader) {
+		trackHeader.order(ByteOrder.BIG_ENDIAN);
 		Map<String, Number> s = new HashMap<>();
 		s.put("options", trackHeader.get());
 		s.put("cylinder", ByteUtil.u16ToInt(trackHeader.getShort()));
@@ -476,201 +850,412 @@ public class CountKeyDataDasd implements Closeable {
 		return trackHeader;
 	}
 
-	/*FIXME: File position needs to be set to the correct position before calling this method!!! */
-	private Map<String, Number> readLevel2Entry(long l2BasePos, long trk) throws IOException {
-		channel.position(l2BasePos);
-		ByteBuffer level2Entries = read(compressedDeviceHeader.get("sizeLevel2Table").intValue() * L2_ENTRY_SIZE);
+	/*FIXME: cylinder is long or int? */
+	private long getTrackNo(long cylinder, short head) {
+		return (cylinder * (int)deviceHeader.get("noHeads")) + head;
+	}
 
-		int l2ent = (int) (trk % compressedDeviceHeader.get("sizeLevel2Table").intValue());
-		level2Entries.position(l2ent * L2_ENTRY_SIZE);
+	//cylinder, head are actually 16 bit unsigned, may use char type here!
+	private char[] getCylinderHeader(long trackNo) {
 
-		Map<String, Number> s = new HashMap<>();
-		long pos = ByteUtil.u32ToLong(level2Entries.getInt());
-		s.put("position", pos);
-		s.put("length", ByteUtil.u16ToInt(level2Entries.getShort()));
-		s.put("size", ByteUtil.u16ToInt(level2Entries.getShort()));
-		return s;
+		int nh = (int)deviceHeader.get("noHeads");
+		return new char[] { (char) (trackNo / nh), (char) (trackNo % nh)};
 	}
 
-	private void writeLevel2Entry(long level2EntryBasePos, long trackNo, Map<String, Number> level2Entry) throws IOException {
+	void setScheduler(RequestScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
 
-		ByteBuffer l2Entry = ByteBuffer.allocate(L2_ENTRY_SIZE).order(byteOrder);
-		l2Entry.putInt(level2Entry.get("position").intValue());
-		l2Entry.putShort(level2Entry.get("length").shortValue());
-		l2Entry.putShort(level2Entry.get("size").shortValue());
-		l2Entry.rewind();
+	/* background I/O goes through the scheduler if there is one */
+	private <T> CompletableFuture<T> submitBackground(long position, long length, RequestScheduler.Operation<T> operation) throws IOException {
+		RequestScheduler s = scheduler;
+		if(s != null)
+			return s.submit(null, RequestScheduler.Priority.BACKGROUND, position, length, operation);
+		return operation.start();
+	}
 
-		int l2ent = (int) (trackNo % compressedDeviceHeader.get("sizeLevel2Table").intValue());
-		this.channel.position(level2EntryBasePos + (l2ent * L2_ENTRY_SIZE));
-		this.channel.write(l2Entry);
+	/**
+	 * position of the first track of a request in the image, to order the requests. It's only a hint
+	 * from the level 1 table in memory, no I/O is done: the position of the level 2 table of the track,
+	 * the tracks of a level 2 table are ordered by their track number.
+	 * @param exportName
+	 * @param offset
+	 * @return index of the file in the upper 16 bits and the position in the file, -1 if the track
+	 * is cached or its level 2 table is unused or in another file
+	 */
+	long getPhysicalPosition(String exportName, long offset) {
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null || offset < 0 || offset / TRACK_DATA_SIZE >= extents.getNoTracks())
+			return -1;
+
+		long track = extents.getTrack(offset / TRACK_DATA_SIZE);
+		String snapshot = getSnapshotName(exportName);
+		if(snapshot == null && trackCache.contains(track))
+			return -1;
+
+		try {
+			int fileIndex = getFileIndex(track);
+			CompressedCkdFile file = files.get(fileIndex);
+			long l2BasePos = file.readLevel1Entry(track, snapshot);
+			if(l2BasePos == 0 || l2BasePos == CompressedCkdFile.OTHER_FILE)
+				return -1;
+			return (long) fileIndex << 48 | (l2BasePos + track % compressedDeviceHeader.get("sizeLevel2Table").intValue());
+		} catch(RuntimeException e) {
+			return -1;
+		}
 	}
 
-	/*FIXME: cylinder is long or int? */
-	private long getTrackNo(long cylinder, short head) {
-		return (cylinder * (int)deviceHeader.get("noHeads")) + head;
+	/* index of the file whose cylinder range contains the track */
+	private int getFileIndex(long track) {
+		int i = files.size() - 1;
+		while(i > 0 && files.get(i).getFirstTrack() > track)
+			i--;
+		return i;
 	}
 
-	//cylinder, head are actually 16 bit unsigned, may use char type here!
-	private char[] getCylinderHeader(long trackNo) {
+	/**
+	 * @param track
+	 * @param snapshot name of the snapshot or null for the current state
+	 * @return index of the file which stores the track, the file of the cylinder range is tried first
+	 * @throws IOException if no file has level 1 and level 2 entries for the track
+	 */
+	private int locateFile(long track, String snapshot) throws IOException {
+		int first = getFileIndex(track);
+		for(int n = 0; n < files.size(); n++) {
+			int i = (first + n) % files.size();
+			CompressedCkdFile file = files.get(i);
+			long l2BasePos = file.readLevel1Entry(track, snapshot);
+			if(l2BasePos == CompressedCkdFile.OTHER_FILE)
+				continue;
+			if(l2BasePos != 0 && file.readLevel2Entry(l2BasePos, track).get("position").longValue() == CompressedCkdFile.OTHER_FILE)
+				continue;
+			return i;
+		}
+		throw new IOException("Track " + track + " is not stored in any file of the image");
+	}
 
-		int nh = (int)deviceHeader.get("noHeads");
-		return new char[] { (char) (trackNo / nh), (char) (trackNo % nh)};
+	private Map<String, Number> readLevel2Entry(long track) throws IOException {
+		return readLevel2Entries(track, 1, null).get(0);
 	}
 
-	private long readLevel1Entry(long trk) {
-		int l1ent = (int) (trk / compressedDeviceHeader.get("sizeLevel2Table").intValue());
-		long pos = ByteUtil.u32ToLong(level1Table.asIntBuffer().get(l1ent));
-		return pos;
+	/**
+	 * reads the level 2 entries of consecutive tracks, the entries are read from the file of the
+	 * cylinder range and get the index of the file which stores the track
+	 * @param firstTrack
+	 * @param noTracks
+	 * @param snapshot name of the snapshot or null for the current state
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Map<String, Number>> readLevel2Entries(long firstTrack, int noTracks, String snapshot) throws IOException {
+		List<Map<String, Number>> l2Entries = new ArrayList<>(noTracks);
+
+		for(long trk = firstTrack, end = firstTrack + noTracks; trk < end; ) {
+			int fileIndex = getFileIndex(trk);
+			long fileEnd = fileIndex + 1 < files.size() ? files.get(fileIndex + 1).getFirstTrack() : end;
+			int n = (int) (Math.min(end, fileEnd) - trk);
+
+			List<Map<String, Number>> entries = files.get(fileIndex).readLevel2Entries(trk, n, snapshot);
+			for(int i = 0; i < n; i++) {
+				Map<String, Number> l2Entry = entries.get(i);
+				int entryFile = fileIndex;
+				if(l2Entry.get("position").longValue() == CompressedCkdFile.OTHER_FILE) {
+					/* track is not in the file of its cylinder range */
+					entryFile = locateFile(trk + i, snapshot);
+					l2Entry = files.get(entryFile).readLevel2Entries(trk + i, 1, snapshot).get(0);
+				}
+				l2Entry.put("file", entryFile);
+				l2Entries.add(l2Entry);
+			}
+			trk += n;
+		}
+		return l2Entries;
 	}
 
-	public long getPartitionSize(String exportName) throws IOException {
-		Map<String, Number> s = partitions.get(exportName);
-		if(s == null) return -1;
+	/* extents of the dataset of the export, null if there is no such dataset or snapshot */
+	private DatasetExtents getPartition(String exportName) {
+		String snapshot = getSnapshotName(exportName);
+		if(snapshot == null)
+			return partitions.get(exportName);
+		if(!files.get(0).getSnapshots().contains(snapshot))
+			return null;
+		return partitions.get(exportName.substring(0, exportName.indexOf(SNAPSHOT_SEPARATOR)));
+	}
 
-		long beginCyl = s.get("beginCylinder").longValue(),
-			endCyl = s.get("endCylinder").longValue(),
-			beginHead = s.get("beginTrack").intValue(),
-			endHead = s.get("endTrack").longValue();
+	private static String getSnapshotName(String exportName) {
+		int i = exportName.indexOf(SNAPSHOT_SEPARATOR);
+		return i < 0 ? null : exportName.substring(i + 1);
+	}
 
-		long endTrack = getTrackNo(endCyl, (short) endHead);
-		long beginTrack = getTrackNo(beginCyl, (short) beginHead);
+	/* snapshots are exported read-only */
+	public boolean isReadOnly(String exportName) {
+		return readOnly || getSnapshotName(exportName) != null;
+	}
 
-		long totalTracks = endTrack - beginTrack + 1; //FIXME +1 correct?
+	public long getPartitionSize(String exportName) throws IOException {
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) return -1;
 
-		long size = totalTracks * SECTORS_PER_TRACK * SECTOR_SIZE;
-		return size;
+		return extents.getNoTracks() * TRACK_DATA_SIZE;
 	}
 
 	public ByteBuffer readDataByOffset(String exportName, long offset, int length) throws IOException {
-		Map<String, Number> s = partitions.get(exportName);
-		if(s == null) throw new IllegalArgumentException();
+		try {
+			return readDataByOffsetAsync(exportName, offset, length).join();
+		} catch(CompletionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	public CompletableFuture<ByteBuffer> readDataByOffsetAsync(String exportName, long offset, int length) throws IOException {
+		return readDataByOffsetAsync(exportName, offset, ByteBuffer.allocate(length));
+	}
+
+	/**
+	 * reads all tracks of the requested range concurrently
+	 * @param exportName
+	 * @param offset
+	 * @param dataTotal buffer to read into, the remaining bytes are read
+	 * @return the data, position is at the end of the data
+	 */
+	public CompletableFuture<ByteBuffer> readDataByOffsetAsync(String exportName, long offset, ByteBuffer dataTotal) throws IOException {
+		int length = dataTotal.remaining();
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException();
+		String snapshot = getSnapshotName(exportName);
 
 		if(offset < 0 || offset >= getPartitionSize(exportName)) {
 			throw new IllegalArgumentException("Illegal offset " + offset + " should between 0 and " + getPartitionSize(exportName));
 		}
 
-		long beginCyl = s.get("beginCylinder").longValue(),
-			beginHead = s.get("beginTrack").intValue();
+		long trackRel = offset / TRACK_DATA_SIZE;
+		long offsetRel = offset % TRACK_DATA_SIZE;
+		int noTracks = (int) ((offsetRel + length + TRACK_DATA_SIZE - 1) / TRACK_DATA_SIZE);
+		List<long[]> ranges = extents.getTrackRanges(trackRel, noTracks);
+
+		/* the read lock is held until all tracks are read, it's released by the completing thread */
+		long stamp = readLock();
+		List<CompletableFuture<ByteBuffer>> tracks;
+		try {
+			if(ranges.size() == 1) {
+				tracks = readTracksAsync(ranges.get(0)[0], noTracks, (int) (offsetRel / SECTOR_SIZE) + 1, (int) ((offsetRel + length - 1) / SECTOR_SIZE) + 1, snapshot);
+			} else {
+				/* the request spans extents */
+				tracks = new ArrayList<>(noTracks);
+				for(long[] range : ranges)
+					tracks.addAll(readTracksAsync(range[0], (int) range[1], snapshot));
+			}
+		} catch(IOException | RuntimeException e) {
+			unlockRead(stamp);
+			throw e;
+		}
+		for(long[] range : ranges) {
+			for(int t = 0; t < range[1] && snapshot == null; t++) {
+				heatMap.touch(range[0] + t);
+			}
+		}
 
-		long beginTrack = getTrackNo(beginCyl, (short) beginHead);
-		ByteBuffer dataTotal = ByteBuffer.allocate(length);
+		return CompletableFuture.allOf(tracks.toArray(new CompletableFuture<?>[noTracks])).whenComplete((v, e) -> unlockRead(stamp)).thenApply(v -> {
+			int t = 0;
+			ByteBuffer trackData = tracks.get(t).join();
+			int sector = (int) (offsetRel / SECTOR_SIZE);
+			int sectorRel = (int) (offsetRel % SECTOR_SIZE);
 
-		long trackRel = offset / (SECTOR_SIZE * SECTORS_PER_TRACK);
-		long offsetRel = offset % (SECTOR_SIZE * SECTORS_PER_TRACK);
-		long trackTotal = beginTrack + trackRel;
+			while(dataTotal.hasRemaining()) {
+				ByteBuffer data = getRecordData(trackData, ++sector);
 
-		ByteBuffer trackData = readTrack(trackTotal);
-		int sector = (int) (offsetRel / SECTOR_SIZE);
-		int sectorRel = (int) (offsetRel % SECTOR_SIZE);
+				if(sectorRel > 0) {
+					data.position(sectorRel);
+					sectorRel = 0;
+				}
+				// length from nbd client doesn't always seems to be a multiple of sector size!
+				if(dataTotal.remaining() < data.remaining()) {
+					data.limit(data.position() + dataTotal.remaining());
+				}
+				dataTotal.put(data);
+				if(sector >= SECTORS_PER_TRACK && dataTotal.hasRemaining()) { sector = 0; trackData = tracks.get(++t).join();}
+			};
+			return dataTotal;
+		});
+	}
 
-		while(length > 0) {
-			ByteBuffer[] keyData = readRecord(trackData, ++sector);
+	/**
+	 * reads the tracks of the range into the track cache, the client will read the range soon.
+	 * At most the tracks which fit into the track cache are read, tracks of snapshots aren't cached.
+	 * @param exportName
+	 * @param offset
+	 * @param length
+	 * @return completes when the tracks are cached
+	 * @throws IOException
+	 */
+	public CompletableFuture<Void> cacheDataByOffset(String exportName, long offset, long length) throws IOException {
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException();
 
-			if(sectorRel > 0) {
-				keyData[1].position(sectorRel);
-				sectorRel = 0;
-			}
-			// length from nbd client doesn't always seems to be a multiple of sector size!
-			if(dataTotal.remaining() < keyData[1].remaining()) {
-				keyData[1].limit(keyData[1].position() + dataTotal.remaining());
-			}
-			dataTotal.put(keyData[1]);
-			length -= keyData[1].limit();
-			offset += keyData[1].limit();
-			if(sector >= SECTORS_PER_TRACK) { sector = 0; trackData = readTrack(++trackTotal);}
-		};
-		return dataTotal;
+		long size = getPartitionSize(exportName);
+		if(offset < 0 || length < 0 || offset + length > size) {
+			throw new IllegalArgumentException("Illegal range " + offset + " length " + length + " should be within 0 and " + size);
+		}
+		if(length == 0 || getSnapshotName(exportName) != null)
+			return CompletableFuture.completedFuture(null);
+
+		long trackRel = offset / TRACK_DATA_SIZE;
+		long offsetRel = offset % TRACK_DATA_SIZE;
+		long noTracks = (offsetRel + length + TRACK_DATA_SIZE - 1) / TRACK_DATA_SIZE;
+		int n = (int) Math.min(noTracks, trackCache.getCapacity((int) deviceHeader.get("trackSize")));
+
+		/* the decompressed tracks are put into the track cache by the read */
+		long stamp = readLock();
+		List<CompletableFuture<ByteBuffer>> tracks = new ArrayList<>(n);
+		try {
+			for(long[] range : extents.getTrackRanges(trackRel, n))
+				tracks.addAll(readTracksAsync(range[0], (int) range[1]));
+		} catch(RuntimeException e) {
+			unlockRead(stamp);
+			throw e;
+		}
+		return CompletableFuture.allOf(tracks.toArray(new CompletableFuture<?>[n])).whenComplete((v, e) -> unlockRead(stamp));
 	}
 
 	public void writeDataByOffset(String exportName, long offset, ByteBuffer data) throws IOException {
-		Map<String, Number> s = partitions.get(exportName);
-		if(s == null) throw new IllegalArgumentException();
-
-		if(offset < 0 || offset >= getPartitionSize(exportName)) {
-			throw new IllegalArgumentException("Illegal offset " + offset + " should between 0 and " + getPartitionSize(exportName));
-		}
+		if(isReadOnly(exportName)) throw new IllegalStateException("Export " + exportName + " is read-only");
 
-		long beginCyl = s.get("beginCylinder").longValue(),
-			beginHead = s.get("beginTrack").intValue();
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException();
 
-		long beginTrack = getTrackNo(beginCyl, (short) beginHead);
+		if(offset < 0 || offset + data.remaining() > getPartitionSize(exportName)) {
+			throw new IllegalArgumentException("Illegal range " + offset + " length " + data.remaining() + " should be within 0 and " + getPartitionSize(exportName));
+		}
 
-		long trackRel = offset / (SECTOR_SIZE * SECTORS_PER_TRACK);
-		long offsetRel = offset % (SECTOR_SIZE * SECTORS_PER_TRACK);
-		long trackTotal = beginTrack + trackRel;
+		long trackRel = offset / TRACK_DATA_SIZE;
+		long offsetRel = offset % TRACK_DATA_SIZE;
+		long trackTotal = extents.getTrack(trackRel);
 
-		ByteBuffer trackData = readTrack(trackTotal);
-		int sector = (int) (offsetRel / SECTOR_SIZE);
-		int sectorRel = (int) (offsetRel % SECTOR_SIZE);
+		long stamp = lock.writeLock();
+		try {
+			ByteBuffer trackData = readTrack(trackTotal);
+			int sector = (int) (offsetRel / SECTOR_SIZE);
+			int sectorRel = (int) (offsetRel % SECTOR_SIZE);
 
-		while(data.hasRemaining()) {
-			trackData.mark();
-			ByteBuffer[] keyData = readRecord(trackData, ++sector);
+			while(data.hasRemaining()) {
+				trackData.mark();
+				ByteBuffer[] keyData = readRecord(trackData, ++sector);
 
-			if(sectorRel > 0) {
-				keyData[1].position(sectorRel);
-				sectorRel = 0;
-			}
+				if(sectorRel > 0) {
+					keyData[1].position(sectorRel);
+					sectorRel = 0;
+				}
 
-			while(keyData[1].hasRemaining() && data.hasRemaining()) {
-				keyData[1].put(data.get());
-			}
-			keyData[1].rewind();
+				while(keyData[1].hasRemaining() && data.hasRemaining()) {
+					keyData[1].put(data.get());
+				}
+				keyData[1].rewind();
 
-			trackData.reset();
-			updateRecord(trackData, sector, keyData);
+				trackData.reset();
+				updateRecord(trackData, sector, keyData);
 
-			if(sector >= SECTORS_PER_TRACK) {
-				writeTrack(trackTotal, trackData);
-				sector = 0;
-				trackData = readTrack(++trackTotal);
-			}
-		};
-		writeTrack(trackTotal, trackData);
+				if(sector >= SECTORS_PER_TRACK && data.hasRemaining()) {
+					writeTrack(trackTotal, trackData);
+					sector = 0;
+					trackTotal = extents.getTrack(++trackRel);
+					trackData = readTrack(trackTotal);
+				}
+			};
+			writeTrack(trackTotal, trackData);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		awaitMirror();
 	}
 
 	private void writeTrack(long trackNo, ByteBuffer trackData) throws IOException {
 
 		assert trackData != null;
-
-		long level2EntryBasePos = readLevel1Entry(trackNo);
-		if(level2EntryBasePos == 0) { // unused level1 table entry
-			ByteBuffer level2Table = createLevel2Table();
-			level2EntryBasePos = allocateFreeSpace(level2Table.limit());
-			writeLevel2Table(level2EntryBasePos, level2Table);
-			writeLevel1Entry(trackNo, level2EntryBasePos);
-		} else if(level2EntryBasePos == -1) {
-			/* table is in another file */
-			throw new IllegalArgumentException();
+		int nullFormat = getNullTrackFormat(trackData);
+		if(nullFormat >= 0) {
+			/* all zero track, store it as null track */
+			storeTrack(trackNo, nullFormat, null, null);
+			return;
 		}
 
-		Map<String, Number> level2Entry = readLevel2Entry(level2EntryBasePos, trackNo);
 		byte compAlg = compressedDeviceHeader.get("compressAlgorithm").byteValue();
-		switch(compAlg) {
-			case 1:
-			// compress trackData with libz
-			ByteBuffer comp = ByteBuffer.allocate((int) Math.pow(2, 16));
-
-			Deflater d = new Deflater();
-			byte[] buffer = new byte[1024];
-			d.setInput(trackData.array(), 0, trackData.limit());
-			d.finish();
-
-			while(!d.finished()) {
-				int len = d.deflate(buffer);
-				comp.put(buffer, 0 , len);
-			}
-			comp.flip();
-			trackData = comp;
-			break;
-
-			default:
-				throw new IllegalArgumentException();
+		int uncompressedLen = trackData.limit();
+		ByteBuffer compressedTrackData = compressTrack(compAlg, trackData, getDeflater());
+		if(compressedTrackData != null) {
+			trackData = compressedTrackData;
+		} else {
+			/* not worth it, store the track uncompressed */
+			compAlg = 0;
+			trackData = trackData.duplicate();
 		}
+		updateCompressionStatistics(compAlg == 0 ? "tracksUncompressed" : "tracksCompressed", 1);
+		updateCompressionStatistics("bytesUncompressed", uncompressedLen);
+		updateCompressionStatistics("bytesStored", trackData.limit());
 
 		trackData.rewind();
 
 		ByteBuffer trackHeader = createTrackHeader(trackNo, compAlg);
+		storeTrack(trackNo, -1, trackHeader, trackData);
+	}
+
+	/**
+	 * stores a compressed track or a null track, the caller holds the write lock
+	 * @param trackNo
+	 * @param nullFormat format of a null track, -1 for a stored track
+	 * @param trackHeader null for a null track
+	 * @param trackData compressed track data, null for a null track
+	 * @throws IOException
+	 */
+	private void storeTrack(long trackNo, int nullFormat, ByteBuffer trackHeader, ByteBuffer trackData) throws IOException {
+
+		trackCache.invalidate(trackNo);
+		markWritten(trackNo);
+		ImageMirror m = mirror;
+		ByteBuffer mirroredTrack = m != null && trackHeader != null ? ImageMirror.copyTrack(trackHeader, trackData) : null;
+
+		writeStoredTrack(trackNo, nullFormat, trackHeader, trackData);
+		syncIfDue();
+
+		/* only tracks stored in the image are mirrored, the writer waits for the mirror without lock */
+		if(m != null)
+			m.write(trackNo, nullFormat, mirroredTrack);
+	}
+
+	private void writeStoredTrack(long trackNo, int nullFormat, ByteBuffer trackHeader, ByteBuffer trackData) throws IOException {
+		CompressedCkdFile file = files.get(locateFile(trackNo, null));
+		Map<String, Number> compressedDeviceHeader = file.getCompressedDeviceHeader();
+		long level2EntryBasePos = file.readLevel1Entry(trackNo);
+		if(level2EntryBasePos == 0 && nullFormat == compressedDeviceHeader.get("nullTrackFormat").intValue()) {
+			/* an unused level1 table entry already reads as null track, nothing to do */
+			return;
+		}
+		if(level2EntryBasePos == 0) { // unused level1 table entry
+			ByteBuffer level2Table = file.createLevel2Table();
+			level2EntryBasePos = file.allocateFreeSpace(level2Table.limit());
+			file.writeLevel2Table(level2EntryBasePos, level2Table);
+			file.writeLevel1Entry(trackNo, level2EntryBasePos);
+		} else {
+			/* level 2 tables of snapshots are copied on write */
+			level2EntryBasePos = file.getWritableLevel2Table(trackNo, level2EntryBasePos);
+		}
+
+		Map<String, Number> level2Entry = file.readLevel2Entry(level2EntryBasePos, trackNo);
+		if(nullFormat >= 0) {
+			/* release the space of the track */
+			long oldTrackPos = level2Entry.get("position").longValue();
+			if(oldTrackPos != 0 && !file.isTrackShared(trackNo, oldTrackPos)) {
+				file.deallocateFreeSpace(oldTrackPos, level2Entry.get("size").intValue());
+			}
+			System.out.printf("Writing track %d - null track format %d\n", trackNo, nullFormat);
+			updateCompressionStatistics("nullTracks", 1);
+			level2Entry.put("position", 0L);
+			level2Entry.put("length", nullFormat);
+			level2Entry.put("size", nullFormat);
+			file.writeLevel2Entry(level2EntryBasePos, trackNo, level2Entry);
+			return;
+		}
 
 		/* Track size  (size >= len) */
 		long oldTrackPos = level2Entry.get("position").longValue();
@@ -683,224 +1268,948 @@ public class CountKeyDataDasd implements Closeable {
 		long newTrackPos = oldTrackPos;
 		long newTrackSize = oldTrackSize;
 
-		// check for empty level2 entry
-		if(oldTrackPos == 0) {
-			newTrackPos = allocateFreeSpace(newTrackLen);
+		// check for empty level2 entry or a track of a snapshot, which must not be overwritten
+		if(oldTrackPos == 0 || file.isTrackShared(trackNo, oldTrackPos)) {
+			newTrackPos = file.allocateFreeSpace(newTrackLen);
 			newTrackSize = newTrackLen;
 		}
 
 		// check for in-place update
 		if(newTrackLen > newTrackSize) {
-			newTrackPos = allocateFreeSpace(newTrackLen);
+			newTrackPos = file.allocateFreeSpace(newTrackLen);
 			newTrackSize = newTrackLen;
-			deallocateFreeSpace(oldTrackPos, oldTrackSize);
+			file.deallocateFreeSpace(oldTrackPos, oldTrackSize);
 		}
 
 		// write track header and data
 		long trackLen = trackHeader.remaining() + trackData.remaining();
-		System.out.printf("Writing track %d - fromPos %d - toPos %d - len %d\n", trackNo, newTrackPos, newTrackPos + trackLen - 1, trackLen);
-		this.channel.position(newTrackPos);
-		this.channel.write(trackHeader);
-		this.channel.write(trackData);
+		System.out.printf("Writing track %d - file %s - fromPos %d - toPos %d - len %d\n", trackNo, file.getFileName(), newTrackPos, newTrackPos + trackLen - 1, trackLen);
+		file.writeTrack(newTrackPos, trackHeader, trackData);
 
 		// update level2 entry
 		level2Entry.put("position", newTrackPos);
 		level2Entry.put("length", newTrackLen);
 		level2Entry.put("size", newTrackSize);
-		writeLevel2Entry(level2EntryBasePos, trackNo, level2Entry);
+		file.writeLevel2Entry(level2EntryBasePos, trackNo, level2Entry);
+	}
+
+	/**
+	 * bulk import of raw data into a dataset. Tracks are built from the sectors and compressed in
+	 * parallel, the compressed tracks are appended to the image in track order and the level 2
+	 * entries are written once per level 2 table. All zero tracks become null tracks.
+	 * @param exportName
+	 * @param in raw data, at most the size of the dataset is imported
+	 * @return number of imported tracks
+	 * @throws IOException
+	 */
+	public long importData(String exportName, ReadableByteChannel in) throws IOException {
+		if(isReadOnly(exportName)) throw new IllegalStateException("Export " + exportName + " is read-only");
+
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException("Unknown dataset " + exportName);
+
+		long noTracks = extents.getNoTracks();
+		int sizeLevel2Table = compressedDeviceHeader.get("sizeLevel2Table").intValue();
+		byte compAlg = compressedDeviceHeader.get("compressAlgorithm").byteValue();
+
+		long stamp = lock.writeLock();
+		try {
+			Deque<CompletableFuture<ByteBuffer[]>> tracks = new ArrayDeque<>();
+			List<Map<String, Number>> level2Entries = new ArrayList<>();
+			long nextTrack = 0; // next track of the dataset to read
+			long track = 0; // next track of the dataset to store
+			long level2FirstTrack = 0; // absolute track of the first level 2 entry
+			boolean eof = false;
+
+			while(true) {
+				while(!eof && nextTrack < noTracks && tracks.size() < MAX_IMPORT_IN_FLIGHT) {
+					ByteBuffer sectors = ByteBuffer.allocate(TRACK_DATA_SIZE);
+					while(sectors.hasRemaining() && !eof) {
+						eof = in.read(sectors) < 0;
+					}
+					if(sectors.position() == 0)
+						break;
+
+					/* the rest of a partial last track is zero */
+					sectors.clear();
+					long t = extents.getTrack(nextTrack++);
+					tracks.add(CompletableFuture.supplyAsync(() -> createImportTrack(t, sectors, compAlg), completionExecutor));
+				}
+				if(tracks.isEmpty())
+					break;
+
+				ByteBuffer[] trackHeaderData;
+				try {
+					trackHeaderData = tracks.poll().join();
+				} catch(CompletionException e) {
+					throw new IOException("Import of track " + track + " failed", e.getCause());
+				}
+
+				/* level 2 entries are written per level 2 table, file and extent */
+				long absTrack = extents.getTrack(track);
+				int fileIndex = locateFile(absTrack, null);
+				if(!level2Entries.isEmpty() && (absTrack % sizeLevel2Table == 0 || level2Entries.get(0).get("file").intValue() != fileIndex
+						|| absTrack != level2FirstTrack + level2Entries.size())) {
+					writeImportedLevel2Entries(level2FirstTrack, level2Entries);
+					level2Entries.clear();
+					syncIfDue();
+				}
+				if(level2Entries.isEmpty())
+					level2FirstTrack = absTrack;
+				level2Entries.add(storeImportedTrack(absTrack, fileIndex, trackHeaderData));
+				track++;
+			}
+			if(!level2Entries.isEmpty()) {
+				writeImportedLevel2Entries(level2FirstTrack, level2Entries);
+			}
+
+			for(CompressedCkdFile file : files)
+				file.sync();
+			return track;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/* builds and compresses a track of an import, null for an all zero track */
+	private ByteBuffer[] createImportTrack(long track, ByteBuffer sectors, byte compAlg) {
+		ByteBuffer trackData = createTrack(track, sectors);
+		if(getNullTrackFormat(trackData) >= 0)
+			return null;
+
+		Deflater deflater = compAlg == 1 ? createDeflater() : null;
+		ByteBuffer compressedTrackData;
+		try {
+			compressedTrackData = compressTrack(compAlg, trackData, deflater);
+		} finally {
+			if(deflater != null)
+				deflater.end();
+		}
+		if(compressedTrackData == null) {
+			compAlg = 0;
+			compressedTrackData = trackData;
+		}
+		updateCompressionStatistics(compAlg == 0 ? "tracksUncompressed" : "tracksCompressed", 1);
+		updateCompressionStatistics("bytesUncompressed", trackData.limit());
+		updateCompressionStatistics("bytesStored", compressedTrackData.limit());
+
+		compressedTrackData.rewind();
+		return new ByteBuffer[] {createTrackHeader(track, compAlg), compressedTrackData};
 	}
 
-	private void writeLevel1Entry(long trk, long level2EntryBasePos) {
-		int l1ent = (int) (trk / compressedDeviceHeader.get("sizeLevel2Table").intValue());
-		level1Table.asIntBuffer().put(l1ent, (int)level2EntryBasePos);
+	/* appends the track to the end of the file, returns its new level 2 entry */
+	private Map<String, Number> storeImportedTrack(long track, int fileIndex, ByteBuffer[] trackHeaderData) throws IOException {
+		trackCache.invalidate(track);
+		markWritten(track);
+
+		Map<String, Number> level2Entry = new HashMap<>();
+		level2Entry.put("file", fileIndex);
+		if(trackHeaderData == null) {
+			updateCompressionStatistics("nullTracks", 1);
+			level2Entry.put("position", 0L);
+			level2Entry.put("length", 2);
+			level2Entry.put("size", 2);
+			return level2Entry;
+		}
+
+		CompressedCkdFile file = files.get(fileIndex);
+		int trackLen = trackHeaderData[0].remaining() + trackHeaderData[1].remaining();
+		long trackPos = file.allocateEndOfFile(trackLen);
+		file.writeTrack(trackPos, trackHeaderData[0], trackHeaderData[1]);
+
+		level2Entry.put("position", trackPos);
+		level2Entry.put("length", trackLen);
+		level2Entry.put("size", trackLen);
+		return level2Entry;
+	}
+
+	/* writes the level 2 entries of consecutive imported tracks of one level 2 table and frees the replaced tracks */
+	private void writeImportedLevel2Entries(long firstTrack, List<Map<String, Number>> level2Entries) throws IOException {
+		CompressedCkdFile file = files.get(level2Entries.get(0).get("file").intValue());
+		long level2EntryBasePos = file.readLevel1Entry(firstTrack);
+
+		if(level2EntryBasePos == 0) {
+			/* null tracks of the default format need no level 2 table */
+			int nullFormat = file.getCompressedDeviceHeader().get("nullTrackFormat").intValue();
+			boolean allNull = true;
+			for(Map<String, Number> level2Entry : level2Entries)
+				allNull &= level2Entry.get("position").longValue() == 0 && level2Entry.get("length").intValue() == nullFormat;
+			if(allNull)
+				return;
+
+			ByteBuffer level2Table = file.createLevel2Table();
+			level2EntryBasePos = file.allocateFreeSpace(level2Table.limit());
+			file.writeLevel2Table(level2EntryBasePos, level2Table);
+			file.writeLevel1Entry(firstTrack, level2EntryBasePos);
+		} else {
+			List<Map<String, Number>> oldLevel2Entries = file.readLevel2Entries(firstTrack, level2Entries.size(), null);
+			for(int i = 0; i < oldLevel2Entries.size(); i++) {
+				long oldTrackPos = oldLevel2Entries.get(i).get("position").longValue();
+				if(oldTrackPos != 0 && oldTrackPos != CompressedCkdFile.OTHER_FILE && !file.isTrackShared(firstTrack + i, oldTrackPos))
+					file.deallocateFreeSpace(oldTrackPos, oldLevel2Entries.get(i).get("size").intValue());
+			}
+			level2EntryBasePos = file.getWritableLevel2Table(firstTrack, level2EntryBasePos);
+		}
+		file.writeLevel2Entries(level2EntryBasePos, firstTrack, level2Entries);
 	}
 
-	private void writeLevel2Table(long level2TableBasePos, ByteBuffer level2Table) throws IOException {
-		this.channel.position(level2TableBasePos);
-		this.channel.write(level2Table);
+	/**
+	 * compresses the track data, compression stops as soon as the output exceeds the
+	 * size which would save MIN_COMPRESSION_SAVINGS percent
+	 * @param compAlg
+	 * @param trackData trackdata without track header
+	 * @param deflater
+	 * @return compressed track data or null if the track should be stored uncompressed
+	 */
+	private ByteBuffer compressTrack(byte compAlg, ByteBuffer trackData, Deflater deflater) {
+		int len = trackData.limit();
+		int maxLen = len - (int) ((long) len * MIN_COMPRESSION_SAVINGS / 100);
+
+		switch(compAlg) {
+		case 0:
+			return null;
+
+		case 1:
+			// compress trackData with libz
+			byte[] comp = new byte[maxLen];
+			int compLen = 0;
+			deflater.reset();
+			deflater.setInput(trackData.array(), trackData.arrayOffset(), len);
+			deflater.finish();
+
+			while(!deflater.finished()) {
+				if(compLen == comp.length)
+					return null;
+				compLen += deflater.deflate(comp, compLen, comp.length - compLen);
+			}
+			return ByteBuffer.wrap(comp, 0, compLen).slice();
+
+		default:
+			throw new IllegalArgumentException("Unsupported compression algorithm " + compAlg);
+		}
 	}
 
-	private void deallocateFreeSpace(long freeSpacePos, int freeSpaceSize) throws IOException {
-		// add a new free space entry in the free space map increase no of free spaces in header field
+	/* the deflater of track writes, writes are exclusive */
+	private Deflater getDeflater() {
+		if(deflater == null)
+			deflater = createDeflater();
+		return deflater;
+	}
 
-		//FIXME: check max free space map length!!
-		int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
+	private Deflater createDeflater() {
+		int level = compressedDeviceHeader.get("compressParameter").intValue();
+		if(level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			level = Deflater.DEFAULT_COMPRESSION;
+		return new Deflater(Integer.getInteger("dasdnbd.compressLevel", level));
+	}
 
-		// first block contains FREE_BLK!
-		freeSpaceMap.position(FREE_SPACE_BLOCK_LENGTH + (noFreeSpaces * FREE_SPACE_BLOCK_LENGTH));
-		compressedDeviceHeader.put("numberFreeSpaces", noFreeSpaces + 1);
-		freeSpaceMap.mark();
-		updateFreeSpaceBlock(freeSpaceMap, freeSpacePos, freeSpaceSize);
+	private void updateCompressionStatistics(String name, long value) {
+		synchronized (compressionStatistics) {
+			compressionStatistics.merge(name, value, (a, b) -> a.longValue() + b.longValue());
+		}
+	}
 
-		long totalFreeSpace = compressedDeviceHeader.get("totalFreeSpace").longValue();
-		compressedDeviceHeader.put("totalFreeSpace", totalFreeSpace + freeSpaceSize);
-		long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
-		compressedDeviceHeader.put("fileUsed", fileUsed - freeSpaceSize);
+	/**
+	 * @return number of null, compressed and uncompressed tracks written and their bytes before and after compression
+	 */
+	public Map<String, Number> getCompressionStatistics() {
+		synchronized (compressionStatistics) {
+			Map<String, Number> s = new HashMap<>(compressionStatistics);
+			long bytesUncompressed = s.getOrDefault("bytesUncompressed", 0).longValue();
+			if(bytesUncompressed > 0)
+				s.put("ratio", s.get("bytesStored").doubleValue() / bytesUncompressed);
+			return s;
+		}
+	}
 
-		if(compressedDeviceHeader.get("largestFreeSpace").longValue() < freeSpaceSize) {
-			compressedDeviceHeader.put("largestFreeSpace", (long) freeSpaceSize);
+	/**
+	 * checks if the track consists only of zeroed records in one of the null track layouts
+	 * @param trackData trackdata without track header
+	 * @return null track format or -1 if the track isn't a null track
+	 */
+	private int getNullTrackFormat(ByteBuffer trackData) {
+		ByteBuffer t = trackData.duplicate().order(ByteOrder.BIG_ENDIAN);
+		t.rewind();
+
+		int noRecords = 0, noSectors = 0;
+		while(t.remaining() >= 8 && t.getLong(t.position()) != -1) {
+			t.position(t.position() + 4); // cylinder, head
+			int rn = t.get() & 0xff;
+			int kl = t.get() & 0xff;
+			int dl = ByteUtil.u16ToInt(t.getShort());
+
+			if(rn != noRecords || kl != 0 || dl > t.remaining())
+				return -1;
+			if(rn == 0 && dl != 8)
+				return -1;
+			if(rn > 0 && dl == SECTOR_SIZE)
+				noSectors++;
+
+			/* compare data word-wise, then the remaining bytes */
+			int end = t.position() + dl;
+			while(t.position() + Long.BYTES <= end)
+				if(t.getLong() != 0) return -1;
+			while(t.position() < end)
+				if(t.get() != 0) return -1;
+			noRecords++;
 		}
+		if(t.remaining() < 8)
+			return -1;
+
+		if(noRecords == 1)
+			return 1;
+		if(noRecords == 2 && noSectors == 0 && t.position() == 8 + 8 + 8)
+			return 0;
+		if(noRecords == SECTORS_PER_TRACK + 1 && noSectors == SECTORS_PER_TRACK)
+			return 2;
+		return -1;
 	}
 
-	private long allocateFreeSpace(int len) throws IOException {
+	/**
+	 * verifies the image. The extents of the headers, level 2 tables, tracks and free space blocks of
+	 * each file must be inside the file and must not overlap. The tracks are read in the order of
+	 * their file position, decompressed and their track and record headers verified in parallel.
+	 * The tables are read under the read lock and tracks which were rewritten meanwhile are skipped,
+	 * so the image may be in use.
+	 * @param bytesPerSecond limit of the track reads, 0 for no limit
+	 * @param problems receives each problem found with "file", "position", "track" of a track and "problem"
+	 * @return counts of the verified tables, tracks, free space and of the problems
+	 * @throws IOException
+	 */
+	public Map<String, Number> scrub(long bytesPerSecond, Consumer<Map<String, Object>> problems) throws IOException {
+		Map<String, Number> summary = new LinkedHashMap<>();
+		Consumer<Map<String, Object>> report = p -> {
+			addTo(summary, "problems", 1);
+			problems.accept(p);
+		};
+
+		long start = System.nanoTime();
+		for(CompressedCkdFile file : files) {
+			List<long[]> extents;
+			long fileSize;
+			long stamp = readLock();
+			try {
+				fileSize = file.getCompressedDeviceHeader().get("fileSize").longValue();
+				extents = readExtents(file, fileSize, report, summary);
+			} finally {
+				unlockRead(stamp);
+			}
+			List<long[]> tracks = verifyExtents(file, extents, fileSize, report, summary);
+			verifyTracks(file, tracks, bytesPerSecond, start, report, summary);
+			addTo(summary, "files", 1);
+		}
+		addTo(summary, "ms", (System.nanoTime() - start) / 1_000_000);
+		System.out.printf("Scrub of %s finished - %s\n", files.get(0).getFileName(), summary);
+		return summary;
+	}
 
-		long freeSpacePos = -1;
+	/* extents of position, length and type or track number, tracks have their used length as fourth element */
+	private List<long[]> readExtents(CompressedCkdFile file, long fileSize, Consumer<Map<String, Object>> report, Map<String, Number> summary) throws IOException {
+		List<long[]> extents = new ArrayList<>();
+		extents.add(new long[] {0, file.getHeadersLength(), EXTENT_HEADERS});
+
+		/* level 2 tables and tracks of the current state and the snapshots */
+		int sizeLevel2Table = file.getCompressedDeviceHeader().get("sizeLevel2Table").intValue();
+		int level2TableLength = file.getLevel2TableLength();
+		Set<Long> level2Tables = new HashSet<>();
+		List<String> states = new ArrayList<>();
+		states.add(null);
+		states.addAll(file.getSnapshots());
+		for(String snapshot : states) {
+			long[] level2TablePositions = file.getLevel2TablePositions(snapshot);
+			for(int l1ent = 0; l1ent < level2TablePositions.length; l1ent++) {
+				long l2BasePos = level2TablePositions[l1ent];
+				if(l2BasePos == 0 || l2BasePos == CompressedCkdFile.OTHER_FILE || !level2Tables.add(l2BasePos))
+					continue;
 
-		long lfs = compressedDeviceHeader.get("largestFreeSpace").longValue();
-		if(len > lfs) {
-			// too big to fit in a free space slot, append to end of file
-			return allocateEndOfFile(len);
-		} else {
-			// find free space slot
-			long positionToFreeSpace = (long) compressedDeviceHeader.get("positionToFreeSpace");
-			int noFreeSpaces = compressedDeviceHeader.get("numberFreeSpaces").intValue();
-
-			if(freeSpaceMap == null) {
-				/* test for old or new free block format */
-				this.channel.position(positionToFreeSpace);
-				ByteBuffer format = read(FREE_SPACE_BLOCK_LENGTH);
-				if(!Arrays.equals("FREE_BLK".getBytes(), format.array())) {
-					throw new IllegalAccessError("old free space block format not supported!");
+				extents.add(new long[] {l2BasePos, level2TableLength, EXTENT_LEVEL2_TABLE});
+				addTo(summary, "level2Tables", 1);
+				if(l2BasePos + level2TableLength > fileSize)
+					continue; // reported with the extents
+
+				long firstTrack = (long) l1ent * sizeLevel2Table;
+				List<Map<String, Number>> l2Entries = file.readLevel2Entries(firstTrack, sizeLevel2Table, snapshot);
+				for(int i = 0; i < l2Entries.size(); i++) {
+					Map<String, Number> l2Entry = l2Entries.get(i);
+					long pos = l2Entry.get("position").longValue();
+					if(pos == 0 || pos == CompressedCkdFile.OTHER_FILE)
+						continue;
+
+					int length = l2Entry.get("length").intValue();
+					int size = l2Entry.get("size").intValue();
+					if(length > size)
+						report.accept(scrubProblem(file, pos, firstTrack + i, "length " + length + " is larger than the size " + size));
+					extents.add(new long[] {pos, size, firstTrack + i, Math.min(length, size)});
 				}
+			}
+		}
 
-				// search free space block which describes the free space array itself!
-				for(;;) {
-					ByteBuffer fsb = read(FREE_SPACE_BLOCK_LENGTH);
-					long[] freeBlockPosLen = readFreeSpaceBlock(fsb);
-					if(positionToFreeSpace == freeBlockPosLen[0]) {
-						freeSpaceMap = this.channel.map(MapMode.READ_WRITE, freeBlockPosLen[0], freeBlockPosLen[1]);
-						freeSpaceMap.order(byteOrder);
-						break;
+		long positionToFreeSpace = file.getCompressedDeviceHeader().get("positionToFreeSpace").longValue();
+		for(long[] freeSpaceBlock : file.readFreeSpaceBlocks()) {
+			if(freeSpaceBlock[1] == 0)
+				continue;
+			boolean freeSpaceMap = freeSpaceBlock[0] == positionToFreeSpace;
+			extents.add(new long[] {freeSpaceBlock[0], freeSpaceBlock[1], freeSpaceMap ? EXTENT_FREE_SPACE_MAP : EXTENT_FREE_SPACE});
+			if(!freeSpaceMap) {
+				addTo(summary, "freeSpaceBlocks", 1);
+				addTo(summary, "bytesFree", freeSpaceBlock[1]);
+			}
+		}
+		return extents;
+	}
+
+	/* checks that the extents are inside the file and don't overlap, returns the extents of the tracks in file order */
+	private List<long[]> verifyExtents(CompressedCkdFile file, List<long[]> extents, long fileSize, Consumer<Map<String, Object>> report, Map<String, Number> summary) {
+		extents.sort(Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]));
+
+		List<long[]> tracks = new ArrayList<>();
+		long[] previous = null, last = null; // last is the extent which ends last so far
+		long end = 0, referenced = 0;
+		for(long[] e : extents) {
+			/* tracks of a snapshot have the same extent */
+			if(previous != null && Arrays.equals(previous, e))
+				continue;
+			previous = e;
+
+			if(e[0] + e[1] > fileSize)
+				report.accept(scrubProblem(file, e[0], e[2], describeExtent(e) + " ends at " + (e[0] + e[1]) + " beyond the end of the file at " + fileSize));
+			if(e[0] < end)
+				report.accept(scrubProblem(file, e[0], e[2], describeExtent(e) + " overlaps " + describeExtent(last) + " at position " + last[0]));
+
+			referenced += Math.max(0, e[0] + e[1] - Math.max(e[0], end));
+			if(e[0] + e[1] > end) {
+				end = e[0] + e[1];
+				last = e;
+			}
+			if(e[2] >= 0)
+				tracks.add(e);
+		}
+		addTo(summary, "tracks", tracks.size());
+		addTo(summary, "bytesUnreferenced", Math.max(0, fileSize - referenced));
+		return tracks;
+	}
+
+	private void verifyTracks(CompressedCkdFile file, List<long[]> tracks, long bytesPerSecond, long start, Consumer<Map<String, Object>> report, Map<String, Number> summary) throws IOException {
+		Deque<CompletableFuture<Map<String, Object>>> verifications = new ArrayDeque<>();
+		for(int i = 0; i < tracks.size(); ) {
+
+			/* physically adjacent tracks are read at once */
+			long readPos = tracks.get(i)[0];
+			long readEnd = readPos + tracks.get(i)[1];
+			int j = i + 1;
+			while(j < tracks.size() && tracks.get(j)[0] == readEnd && readEnd - readPos < SCRUB_READ_SIZE) {
+				readEnd += tracks.get(j)[1];
+				j++;
+			}
+			List<long[]> run = tracks.subList(i, j);
+			i = j;
+
+			ByteBuffer bb = ByteBuffer.allocate((int) (readEnd - readPos));
+			List<long[]> current = new ArrayList<>();
+			try {
+				submitBackground((long) files.indexOf(file) << 48 | readPos, bb.capacity(), () -> {
+					long stamp = readLock();
+					try {
+						for(long[] t : run)
+							if(file.isTrackReferenced(t[2], t[0]))
+								current.add(t);
+						if(!current.isEmpty())
+							file.readFully(bb, readPos);
+					} finally {
+						unlockRead(stamp);
+					}
+					return CompletableFuture.completedFuture(null);
+				}).join();
+			} catch(IOException | CompletionException e) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				report.accept(scrubProblem(file, readPos, run.get(0)[2], "read failed: " + cause.getMessage()));
+				continue;
+			}
+			addTo(summary, "tracksSkipped", run.size() - current.size());
+			addTo(summary, "bytesRead", bb.capacity());
+
+			/* decompress and verify the tracks in parallel */
+			for(long[] t : current) {
+				ByteBuffer compressedTrack = bb.duplicate();
+				compressedTrack.position((int) (t[0] - readPos));
+				compressedTrack.limit(compressedTrack.position() + (int) t[3]);
+				ByteBuffer ct = compressedTrack.slice();
+				verifications.add(CompletableFuture.supplyAsync(() -> {
+					String problem = verifyTrack(t[2], ct);
+					return problem != null ? scrubProblem(file, t[0], t[2], problem) : null;
+				}, completionExecutor));
+			}
+			while(verifications.size() > MAX_SCRUB_IN_FLIGHT)
+				reportVerification(verifications.poll(), report, summary);
+
+			/* throttle */
+			if(bytesPerSecond > 0) {
+				long due = start + (long) (summary.get("bytesRead").doubleValue() * 1_000_000_000 / bytesPerSecond);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Scrub interrupted");
 					}
 				}
 			}
+		}
+		while(!verifications.isEmpty())
+			reportVerification(verifications.poll(), report, summary);
+	}
 
-			freeSpaceMap.position(FREE_SPACE_BLOCK_LENGTH); // skip first entry "FREE_BLK)
-			for(int i = 0; i < noFreeSpaces; i++) {
+	private void reportVerification(CompletableFuture<Map<String, Object>> verification, Consumer<Map<String, Object>> report, Map<String, Number> summary) {
+		Map<String, Object> problem = verification.join();
+		if(problem != null)
+			report.accept(problem);
+		addTo(summary, "tracksVerified", 1);
+	}
 
-				freeSpaceMap.mark();
-				long[] freeBlockPosLen = readFreeSpaceBlock(freeSpaceMap);
+	/**
+	 * @param track
+	 * @param compressedTrack track header and compressed track data
+	 * @return problem of the track or null
+	 */
+	private String verifyTrack(long track, ByteBuffer compressedTrack) {
+		if(compressedTrack.remaining() < 5)
+			return "track is shorter than the track header";
+
+		char[] ch = getCylinderHeader(track);
+		Map<String, Number> trackHeader = readTrackHeader(compressedTrack.duplicate());
+		int cylinder = trackHeader.get("cylinder").intValue();
+		int head = trackHeader.get("head").intValue();
+		if(cylinder != ch[0] || head != ch[1])
+			return String.format("track header has cylinder %d head %d instead of cylinder %d head %d", cylinder, head, (int) ch[0], (int) ch[1]);
+
+		ByteBuffer trackData;
+		try {
+			trackData = decodeTrack(track, compressedTrack);
+		} catch(RuntimeException e) {
+			return e.getMessage();
+		}
 
-				//skip the entry, that describes this free space block array itself! 
-				if(positionToFreeSpace == freeBlockPosLen[0])
-					continue;
+		for(int n = 0; ; n++) {
+			if(trackData.remaining() < 8)
+				return "end of track marker is missing";
+			if(trackData.getLong(trackData.position()) == -1)
+				return null;
 
-				if(len <= freeBlockPosLen[1]) {
-					/* data fits into current free block, assign position */
-					long remainingFreeSpaceInBlock = (long) (freeBlockPosLen[1] - len);
-					long newBlockPos = freeBlockPosLen[0] + len;
-					updateFreeSpaceBlock(freeSpaceMap, newBlockPos, remainingFreeSpaceInBlock);
+			Map<String, Number> recordHeader = readRecordHeader(trackData);
+			int rn = recordHeader.get("recordNo").intValue() & 0xff;
+			int kl = recordHeader.get("keyLength").intValue() & 0xff;
+			int dl = recordHeader.get("dataLength").intValue();
+			if(recordHeader.get("cylinder").intValue() != ch[0] || recordHeader.get("head").intValue() != ch[1])
+				return String.format("record %d has cylinder %d head %d", rn, recordHeader.get("cylinder").intValue(), recordHeader.get("head").intValue());
+			if(n == 0 && rn != 0)
+				return "first record is record " + rn + " instead of record 0";
+			if(kl + dl > trackData.remaining())
+				return String.format("record %d with key length %d and data length %d exceeds the track", rn, kl, dl);
+			trackData.position(trackData.position() + kl + dl);
+		}
+	}
 
-					/* check for largest free space area */
-					if(lfs == freeBlockPosLen[1]) {
-						/* update device header field with new value */
-						compressedDeviceHeader.put("largestFreeSpace", remainingFreeSpaceInBlock);
-					}
-					freeSpacePos = freeBlockPosLen[0];
-					break;
-				}
+	private static String describeExtent(long[] extent) {
+		if(extent[2] >= 0)
+			return "track " + extent[2];
+		if(extent[2] == EXTENT_HEADERS)
+			return "headers";
+		if(extent[2] == EXTENT_LEVEL2_TABLE)
+			return "level 2 table";
+		if(extent[2] == EXTENT_FREE_SPACE_MAP)
+			return "free space map";
+		return "free space";
+	}
+
+	private static Map<String, Object> scrubProblem(CompressedCkdFile file, long position, long track, String problem) {
+		Map<String, Object> s = new LinkedHashMap<>();
+		s.put("file", file.getFileName());
+		s.put("position", position);
+		if(track >= 0)
+			s.put("track", track);
+		s.put("problem", problem);
+		return s;
+	}
+
+	private static void addTo(Map<String, Number> s, String name, long value) {
+		s.merge(name, value, (a, b) -> a.longValue() + b.longValue());
+	}
+
+	@Override
+	public void close() throws IOException {
+		// write cache to data
+
+		stopMirror();
+		backgroundExecutor.shutdownNow();
+		if(!readOnly)
+			heatMap.save();
+		System.out.printf("Compression statistics %s\n", getCompressionStatistics());
+
+		long stamp = lock.writeLock();
+		try {
+			for(CompressedCkdFile file : files)
+				file.close();
+			if(!readOnly) {
+				for(DirtyTrackBitmap dirtyTracks : checkpoints.values())
+					dirtyTracks.save();
 			}
+			for(DirtyTrackBitmap dirtyTracks : checkpoints.values())
+				dirtyTracks.close();
+			if(deflater != null)
+				deflater.end();
+			completionExecutor.shutdown();
+		} finally {
+			lock.unlockWrite(stamp);
 		}
+	}
 
-		// update header statistics
-		if(freeSpacePos >= 0) {
-			long totalFreeSpace = compressedDeviceHeader.get("totalFreeSpace").longValue();
-			long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
-			compressedDeviceHeader.put("totalFreeSpace", totalFreeSpace - len);
-			compressedDeviceHeader.put("fileUsed", fileUsed + len);
-		} else {
-			/* oh great! the free space block entry that contains the free space block map
-			 * "positionToFreeSpace", can also be the "largestFreeSpace".. WTF?!
-			 * allocate at the end of file in this case
-			 */
-			return allocateEndOfFile(len);
+	/**
+	 * creates a snapshot of the current state of all files, it can be exported as <dataset>@<snapshot>
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public void createSnapshot(String snapshot) throws IOException {
+		if(readOnly) throw new IllegalStateException("Image is opened read-only");
+		if(!snapshot.matches("[A-Za-z0-9_.-]+") || snapshot.endsWith(".tmp"))
+			throw new IllegalArgumentException("Invalid snapshot name " + snapshot);
+
+		long stamp = lock.writeLock();
+		try {
+			for(CompressedCkdFile file : files) {
+				file.sync();
+				file.createSnapshot(snapshot);
+			}
+			System.out.printf("Created snapshot %s\n", snapshot);
+		} finally {
+			lock.unlockWrite(stamp);
 		}
+	}
 
-		assert freeSpacePos >= 0;
+	/**
+	 * deletes a snapshot and frees the space which is only used by it
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public void deleteSnapshot(String snapshot) throws IOException {
+		if(readOnly) throw new IllegalStateException("Image is opened read-only");
+
+		long stamp = lock.writeLock();
+		try {
+			for(CompressedCkdFile file : files) {
+				file.deleteSnapshot(snapshot);
+				file.sync();
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
 
-		return freeSpacePos;
+	public Set<String> getSnapshots() {
+		return files.get(0).getSnapshots();
 	}
 
-	private long allocateEndOfFile(int len) {
+	private Path getCheckpointPath(String checkpoint) {
+		return new File(files.get(0).getFileName() + CHECKPOINT_SUFFIX + checkpoint).toPath();
+	}
 
-		long fileSize = compressedDeviceHeader.get("fileSize").longValue();
-		long fileUsed = compressedDeviceHeader.get("fileUsed").longValue();
+	/* the tracks logged since the last save of a bitmap are saved into it right away */
+	private void loadCheckpoints(int noTracks) throws IOException {
+		Path path = new File(files.get(0).getFileName()).getAbsoluteFile().toPath();
+		String prefix = path.getFileName() + CHECKPOINT_SUFFIX;
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(path.getParent(), p -> p.getFileName().toString().startsWith(prefix))) {
+			for(Path p : ds) {
+				String checkpoint = p.getFileName().toString().substring(prefix.length());
+				if(checkpoint.endsWith(".tmp") || checkpoint.endsWith(".log"))
+					continue;
 
-		//FIXME: where to get the maximum file size from?
-//		if(fileSize + len > deviceHeader.get("maxFileSize")) {
-//			throw new IllegalArgumentException("dataset too small!");
-//		}
+				DirtyTrackBitmap dirtyTracks = new DirtyTrackBitmap(p, noTracks);
+				dirtyTracks.load();
+				if(!readOnly)
+					dirtyTracks.save();
+				checkpoints.put(checkpoint, dirtyTracks);
+			}
+		}
+	}
 
-		compressedDeviceHeader.put("fileSize", fileSize + len);
-		compressedDeviceHeader.put("fileUsed", fileUsed + len);
-		return fileSize;
+	private void markWritten(long track) throws IOException {
+		for(DirtyTrackBitmap dirtyTracks : checkpoints.values())
+			dirtyTracks.set(track);
 	}
 
-	private void updateFreeSpaceBlock(MappedByteBuffer freeSpaceMap, long freeSpacePosition, long freeSpaceLength) throws IOException {
+	/**
+	 * creates a checkpoint, the tracks which are written from now on are tracked for incremental backups
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	public void createCheckpoint(String checkpoint) throws IOException {
+		if(readOnly) throw new IllegalStateException("Image is opened read-only");
+		if(!checkpoint.matches("[A-Za-z0-9_.-]+") || checkpoint.endsWith(".tmp") || checkpoint.endsWith(".log"))
+			throw new IllegalArgumentException("Invalid checkpoint name " + checkpoint);
+
+		long stamp = lock.writeLock();
+		try {
+			if(checkpoints.containsKey(checkpoint))
+				throw new IllegalArgumentException("Checkpoint " + checkpoint + " exists already");
+
+			int noTracks = compressedDeviceHeader.get("noCylindersOnDevice").intValue() * (int) deviceHeader.get("noHeads");
+			DirtyTrackBitmap dirtyTracks = new DirtyTrackBitmap(getCheckpointPath(checkpoint), noTracks);
+			dirtyTracks.save();
+			checkpoints.put(checkpoint, dirtyTracks);
+			System.out.printf("Created checkpoint %s\n", checkpoint);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
 
-		freeSpaceMap.reset();
-		freeSpaceMap.putInt((int) freeSpacePosition);
-		freeSpaceMap.putInt((int) freeSpaceLength);
+	public void deleteCheckpoint(String checkpoint) throws IOException {
+		if(readOnly) throw new IllegalStateException("Image is opened read-only");
+
+		/* no write logs a track into the bitmap while it's deleted */
+		long stamp = lock.writeLock();
+		try {
+			DirtyTrackBitmap dirtyTracks = checkpoints.remove(checkpoint);
+			if(dirtyTracks == null)
+				throw new IllegalArgumentException("Unknown checkpoint " + checkpoint);
+			dirtyTracks.delete();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 
-	private long[] readFreeSpaceBlock(ByteBuffer freeSpaceBlock) throws IOException {
-		long currentFreeBlockPosition = ByteUtil.u32ToLong(freeSpaceBlock.getInt());
-		long currentFreeBlockLength = ByteUtil.u32ToLong(freeSpaceBlock.getInt());
-		return new long[] {currentFreeBlockPosition, currentFreeBlockLength};
+	public Set<String> getCheckpoints() {
+		return Collections.unmodifiableSet(checkpoints.keySet());
 	}
 
-	/* create empty l2 table */
-	private ByteBuffer createLevel2Table() {
-		int n = compressedDeviceHeader.get("sizeLevel2Table").intValue();
-		short nullFormat = compressedDeviceHeader.get("nullTrackFormat").shortValue();
+	/**
+	 * @param exportName
+	 * @param checkpoint
+	 * @param firstTrack first track relative to the begin of the dataset
+	 * @param noTracks
+	 * @return tracks which were written since the checkpoint, bit 0 is the first track
+	 */
+	public BitSet getWrittenTracks(String exportName, String checkpoint, long firstTrack, int noTracks) {
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException("Unknown dataset " + exportName);
+		DirtyTrackBitmap dirtyTracks = checkpoints.get(checkpoint);
+		if(dirtyTracks == null) throw new IllegalArgumentException("Unknown checkpoint " + checkpoint);
+
+		BitSet writtenTracks = new BitSet(noTracks);
+		int t = 0;
+		for(long[] range : extents.getTrackRanges(firstTrack, noTracks)) {
+			BitSet rangeTracks = dirtyTracks.get(range[0], (int) range[1]);
+			for(int i = rangeTracks.nextSetBit(0); i >= 0; i = rangeTracks.nextSetBit(i + 1))
+				writtenTracks.set(t + i);
+			t += range[1];
+		}
+		return writtenTracks;
+	}
 
-		ByteBuffer level2Entries = ByteBuffer.allocate(n * L2_ENTRY_SIZE).order(byteOrder);
+	/**
+	 * @param exportName
+	 * @param firstTrack first track relative to the begin of the dataset
+	 * @param noTracks
+	 * @return null tracks, which have no data and read as zeros, bit 0 is the first track
+	 * @throws IOException
+	 */
+	public BitSet getNullTracks(String exportName, long firstTrack, int noTracks) throws IOException {
+		DatasetExtents extents = getPartition(exportName);
+		if(extents == null) throw new IllegalArgumentException("Unknown dataset " + exportName);
+
+		List<Map<String, Number>> l2Entries = new ArrayList<>(noTracks);
+		long stamp = readLock();
+		try {
+			for(long[] range : extents.getTrackRanges(firstTrack, noTracks))
+				l2Entries.addAll(readLevel2Entries(range[0], (int) range[1], getSnapshotName(exportName)));
+		} finally {
+			unlockRead(stamp);
+		}
 
-		for(int i = 0; i < n; i++) {
-			level2Entries.putInt(0);
-			level2Entries.putShort(nullFormat);
-			level2Entries.putShort(nullFormat);
+		BitSet nullTracks = new BitSet(noTracks);
+		for(int t = 0; t < noTracks; t++) {
+			if(l2Entries.get(t).get("position").longValue() == 0)
+				nullTracks.set(t);
 		}
-		level2Entries.rewind();
-		return level2Entries;
+		return nullTracks;
 	}
 
-	@Override
-	public void close() throws IOException {
-		// write cache to data
+	/**
+	 * starts to mirror the writes into a second image of the same device, e.g. a copy of this image on another
+	 * disk. The tracks of the image are copied into the mirror in the background first, only the current state,
+	 * snapshots and checkpoints aren't mirrored.
+	 * @param mirrorFileName first file of the mirror image
+	 * @param waitOnFlush a flush of the clients waits for the mirror, see syncMirror
+	 * @throws IOException
+	 */
+	public void startMirror(String mirrorFileName, boolean waitOnFlush) throws IOException {
+		if(readOnly) throw new IllegalStateException("Image is opened read-only");
+		if(Files.isSameFile(new File(mirrorFileName).toPath(), new File(files.get(0).getFileName()).toPath()))
+			throw new IllegalArgumentException("Mirror " + mirrorFileName + " is the image itself");
+
+		CountKeyDataDasd target = new CountKeyDataDasd(mirrorFileName);
+		long noTracks = getNoTracks();
+		if(target.getNoTracks() != noTracks || !target.deviceHeader.get("trackSize").equals(deviceHeader.get("trackSize"))) {
+			target.close();
+			throw new IllegalArgumentException("Mirror " + mirrorFileName + " has another device geometry");
+		}
+
+		ImageMirror m = new ImageMirror(target, mirrorFileName, noTracks, waitOnFlush);
+		long stamp = lock.writeLock();
+		try {
+			if(mirror != null) {
+				target.close();
+				throw new IllegalStateException("A mirror is running already");
+			}
+			m.start();
+			mirror = m;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		System.out.printf("Mirroring writes to %s\n", mirrorFileName);
+
+		Thread t = new Thread(() -> {
+			try {
+				copyToMirror(m);
+			} catch(IOException | RuntimeException e) {
+				System.out.printf("Initial sync of mirror %s failed\n", mirrorFileName);
+				e.printStackTrace();
+			}
+		}, "mirror-sync");
+		t.setDaemon(true);
+		t.start();
+	}
 
-		// FIXME: sync headers to disk!!
-//		writeDeviceHeader(deviceHeader);
-		writeCompressedDiskHeader(compressedDeviceHeader);
-		channel.close();
-	}
-
-	private void writeCompressedDiskHeader(Map<String, Number> compressedDeviceHeader) throws IOException {
-
-		ByteBuffer cdh = ByteBuffer.allocate(512).order(byteOrder);
-		cdh.put(compressedDeviceHeader.get("v").byteValue());
-		cdh.put(compressedDeviceHeader.get("r").byteValue());
-		cdh.put(compressedDeviceHeader.get("m").byteValue());
-		cdh.put(compressedDeviceHeader.get("options").byteValue());
-		cdh.putInt(compressedDeviceHeader.get("sizeLevel1Table").intValue());
-		cdh.putInt(compressedDeviceHeader.get("sizeLevel2Table").intValue());
-		cdh.putInt(compressedDeviceHeader.get("fileSize").intValue());
-		cdh.putInt(compressedDeviceHeader.get("fileUsed").intValue());
-		cdh.putInt(compressedDeviceHeader.get("positionToFreeSpace").intValue());
-		cdh.putInt(compressedDeviceHeader.get("totalFreeSpace").intValue());
-		cdh.putInt(compressedDeviceHeader.get("largestFreeSpace").intValue());
-		cdh.putInt(compressedDeviceHeader.get("numberFreeSpaces").intValue());
-		cdh.putInt(compressedDeviceHeader.get("imbeddedFreeSpace").intValue());
-		cdh.putInt(compressedDeviceHeader.get("noCylindersOnDevice").intValue());
-		cdh.put(compressedDeviceHeader.get("nullTrackFormat").byteValue());
-		cdh.put(compressedDeviceHeader.get("compressAlgorithm").byteValue());
-		cdh.putShort(compressedDeviceHeader.get("compressParameter").shortValue());
-		cdh.rewind();
-		this.channel.position(512);
-		this.channel.write(cdh);
+	/*
+	 * copies all tracks into the mirror as they are stored. The tracks are queued with the read lock, so
+	 * a write of a track is queued either before its copy, which contains the write then, or after it.
+	 */
+	private void copyToMirror(ImageMirror m) throws IOException {
+		long noTracks = getNoTracks();
+		for(long first = 0; first < noTracks; first += MIRROR_SYNC_TRACKS) {
+			long firstTrack = first;
+			int n = (int) Math.min(MIRROR_SYNC_TRACKS, noTracks - first);
+			boolean copied = submitBackground(-1, n * TRACK_DATA_SIZE, () -> {
+				long stamp = readLock();
+				try {
+					if(mirror != m)
+						return CompletableFuture.completedFuture(false);
+
+					List<Map<String, Number>> l2Entries = readLevel2Entries(firstTrack, n, null);
+					for(int i = 0; i < n; i++) {
+						Map<String, Number> l2Entry = l2Entries.get(i);
+						long pos = l2Entry.get("position").longValue();
+						if(pos == 0) {
+							m.write(firstTrack + i, l2Entry.get("size").intValue(), null);
+							continue;
+						}
+						ByteBuffer storedTrack = ByteBuffer.allocate(l2Entry.get("length").intValue());
+						files.get(l2Entry.get("file").intValue()).readFully(storedTrack, pos);
+						m.write(firstTrack + i, -1, storedTrack);
+					}
+				} finally {
+					unlockRead(stamp);
+				}
+				m.awaitCapacity();
+				return CompletableFuture.completedFuture(true);
+			}).join();
+			if(!copied)
+				return;
+			m.addSyncedTracks(n);
+		}
+		m.setSynced();
 	}
 
+	/**
+	 * writes a track of the primary image into this mirror image
+	 * @param trackNo
+	 * @param nullFormat format of a null track, -1 for a stored track
+	 * @param storedTrack track header and compressed data, null for a null track
+	 * @throws IOException
+	 */
+	void writeMirroredTrack(long trackNo, int nullFormat, ByteBuffer storedTrack) throws IOException {
+		ByteBuffer trackHeader = null, trackData = null;
+		if(storedTrack != null) {
+			trackHeader = storedTrack.duplicate();
+			trackHeader.limit(trackHeader.position() + 5);
+			trackData = storedTrack.duplicate();
+			trackData.position(trackHeader.limit());
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			storeTrack(trackNo, nullFormat, trackHeader, trackData);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/* syncs the files with too many uncommitted updates, only between two stored tracks while the write lock is held */
+	private void syncIfDue() throws IOException {
+		for(CompressedCkdFile file : files) {
+			if(file.isSyncDue())
+				file.sync();
+		}
+	}
+
+	/* writers wait for a full mirror queue after they released the lock */
+	private void awaitMirror() throws IOException {
+		ImageMirror m = mirror;
+		if(m != null)
+			m.awaitCapacity();
+	}
+
+	/**
+	 * stops the mirror, the queued writes are written into it before
+	 * @throws IOException
+	 */
+	public void stopMirror() throws IOException {
+		ImageMirror m;
+		long stamp = lock.writeLock();
+		try {
+			m = mirror;
+			mirror = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if(m != null)
+			m.close();
+	}
+
+	/**
+	 * @return replication lag of the mirror, see ImageMirror, or null if there is no mirror
+	 */
+	public Map<String, Number> getMirrorStatus() {
+		ImageMirror m = mirror;
+		return m != null ? m.getStatus() : null;
+	}
+
+	/**
+	 * @return completed when the writes until now are synced in the mirror, if the mirror waits on flushes
+	 */
+	public CompletableFuture<Void> syncMirror() {
+		ImageMirror m = mirror;
+		if(m == null || !m.isWaitOnFlush())
+			return CompletableFuture.completedFuture(null);
+		return m.flush();
+	}
+
+	private long getNoTracks() {
+		return compressedDeviceHeader.get("noCylindersOnDevice").longValue() * (int) deviceHeader.get("noHeads");
+	}
+
+	/**
+	 * makes all writes durable: the track data is forced to disk first, then the metadata
+	 * changes are committed to the journal. The journal is checkpointed into the image
+	 * when it grows too large.
+	 * @throws IOException
+	 */
 	public void sync() throws IOException {
-		this.channel.force(true);
+		long stamp = lock.writeLock();
+		try {
+			for(CompressedCkdFile file : files)
+				file.sync();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 }
@@ -0,0 +1,99 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class DasdAdmin implements DasdAdminMBean {
+
+	static final String OBJECT_NAME = "de.m3y3r.dasdnbd:type=DasdAdmin";
+
+	private final CountKeyDataDasd ckd;
+	private final RequestScheduler scheduler;
+	private volatile Thread scrubThread;
+
+	DasdAdmin(CountKeyDataDasd ckd, RequestScheduler scheduler) {
+		this.ckd = ckd;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void createSnapshot(String snapshot) throws IOException {
+		ckd.createSnapshot(snapshot);
+	}
+
+	@Override
+	public void deleteSnapshot(String snapshot) throws IOException {
+		ckd.deleteSnapshot(snapshot);
+	}
+
+	@Override
+	public Set<String> getSnapshots() {
+		return ckd.getSnapshots();
+	}
+
+	@Override
+	public void createCheckpoint(String checkpoint) throws IOException {
+		ckd.createCheckpoint(checkpoint);
+	}
+
+	@Override
+	public void deleteCheckpoint(String checkpoint) throws IOException {
+		ckd.deleteCheckpoint(checkpoint);
+	}
+
+	@Override
+	public Set<String> getCheckpoints() {
+		return ckd.getCheckpoints();
+	}
+
+	@Override
+	public synchronized void startScrub(int mibPerSecond, String reportFile) throws IOException {
+		if(isScrubRunning())
+			throw new IllegalStateException("A scrub is running already");
+
+		PrintStream report = new PrintStream(new FileOutputStream(reportFile), true);
+		scrubThread = new Thread(() -> {
+			try {
+				Map<String, Number> summary = ckd.scrub(mibPerSecond * 1024L * 1024, p -> report.println(Scrub.toJson("problem", p)));
+				report.println(Scrub.toJson("summary", summary));
+			} catch(IOException | RuntimeException e) {
+				e.printStackTrace();
+				report.println(Scrub.toJson("error", Collections.singletonMap("problem", e.toString())));
+			} finally {
+				report.close();
+			}
+		}, "scrub");
+		scrubThread.setDaemon(true);
+		scrubThread.start();
+	}
+
+	@Override
+	public boolean isScrubRunning() {
+		Thread t = scrubThread;
+		return t != null && t.isAlive();
+	}
+
+	@Override
+	public void setExportLimit(String exportName, long iops, long bytesPerSecond) {
+		scheduler.setExportLimit(exportName, iops, bytesPerSecond);
+	}
+
+	@Override
+	public void startMirror(String mirrorImage, boolean waitOnFlush) throws IOException {
+		ckd.startMirror(mirrorImage, waitOnFlush);
+	}
+
+	@Override
+	public void stopMirror() throws IOException {
+		ckd.stopMirror();
+	}
+
+	@Override
+	public Map<String, Number> getMirrorStatus() {
+		return ckd.getMirrorStatus();
+	}
+}
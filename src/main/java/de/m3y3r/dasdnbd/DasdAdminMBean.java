@@ -0,0 +1,62 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Management operations of the served image, registered as JMX MBean
+ */
+public interface DasdAdminMBean {
+
+	void createSnapshot(String snapshot) throws IOException;
+
+	void deleteSnapshot(String snapshot) throws IOException;
+
+	Set<String> getSnapshots();
+
+	/**
+	 * creates a checkpoint, the tracks written from now on are served as meta context
+	 * qemu:dirty-bitmap:<checkpoint> and exported by Export --changed-since
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	void createCheckpoint(String checkpoint) throws IOException;
+
+	void deleteCheckpoint(String checkpoint) throws IOException;
+
+	Set<String> getCheckpoints();
+
+	/**
+	 * starts a scrub of the image in the background
+	 * @param mibPerSecond read rate limit, 0 for no limit
+	 * @param reportFile file of the JSON lines report, see Scrub
+	 * @throws IOException
+	 */
+	void startScrub(int mibPerSecond, String reportFile) throws IOException;
+
+	boolean isScrubRunning();
+
+	/**
+	 * limits the requests of an export
+	 * @param exportName
+	 * @param iops requests per second, 0 for no limit
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	void setExportLimit(String exportName, long iops, long bytesPerSecond);
+
+	/**
+	 * starts to mirror the writes into a second image of the same device, its tracks are copied first
+	 * @param mirrorImage first file of the mirror image
+	 * @param waitOnFlush a flush of the clients is completed when the mirror is synced too
+	 * @throws IOException
+	 */
+	void startMirror(String mirrorImage, boolean waitOnFlush) throws IOException;
+
+	void stopMirror() throws IOException;
+
+	/**
+	 * @return replication lag, e.g. queuedTracks and lagMillis, and the progress of the initial sync
+	 */
+	Map<String, Number> getMirrorStatus();
+}
@@ -0,0 +1,84 @@
+package de.m3y3r.dasdnbd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Extents of a dataset as ranges of absolute tracks, built once from the DSCBs. The tracks of a dataset
+ * are numbered relative to its begin over all extents, a relative track is translated by a binary search
+ * over the tracks before each extent.
+ */
+class DatasetExtents {
+
+	private final long[] firstTracks; // absolute first track of each extent
+	private final long[] tracksBefore; // tracks of the dataset before each extent, the last entry is the total
+
+	/**
+	 * @param extents first and last absolute track of the extents, in the order of the dataset
+	 */
+	DatasetExtents(List<long[]> extents) {
+		if(extents.isEmpty())
+			throw new IllegalArgumentException("Dataset without extents");
+
+		firstTracks = new long[extents.size()];
+		tracksBefore = new long[extents.size() + 1];
+		for(int i = 0; i < extents.size(); i++) {
+			long[] e = extents.get(i);
+			if(e[1] < e[0])
+				throw new IllegalArgumentException("Extent ends before its begin: " + e[0] + " - " + e[1]);
+			firstTracks[i] = e[0];
+			tracksBefore[i + 1] = tracksBefore[i] + e[1] - e[0] + 1;
+		}
+	}
+
+	long getNoTracks() {
+		return tracksBefore[firstTracks.length];
+	}
+
+	int getNoExtents() {
+		return firstTracks.length;
+	}
+
+	/* index of the extent which holds the relative track */
+	private int getExtent(long track) {
+		if(track < 0 || track >= getNoTracks())
+			throw new IllegalArgumentException("Track " + track + " should be between 0 and " + getNoTracks());
+		if(firstTracks.length == 1)
+			return 0;
+
+		int i = Arrays.binarySearch(tracksBefore, track);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * @param track relative to the begin of the dataset
+	 * @return absolute track
+	 */
+	long getTrack(long track) {
+		int e = getExtent(track);
+		return firstTracks[e] + track - tracksBefore[e];
+	}
+
+	/**
+	 * splits a range of the dataset at the extent boundaries
+	 * @param firstTrack relative to the begin of the dataset
+	 * @param noTracks
+	 * @return absolute first track and number of tracks of each part
+	 */
+	List<long[]> getTrackRanges(long firstTrack, long noTracks) {
+		List<long[]> ranges = new ArrayList<>(1);
+		if(noTracks <= 0)
+			return ranges;
+		if(firstTrack + noTracks > getNoTracks())
+			throw new IllegalArgumentException("Tracks " + firstTrack + " - " + (firstTrack + noTracks - 1) + " should be below " + getNoTracks());
+
+		for(int e = getExtent(firstTrack); noTracks > 0; e++) {
+			long n = Math.min(noTracks, tracksBefore[e + 1] - firstTrack);
+			ranges.add(new long[] { firstTracks[e] + firstTrack - tracksBefore[e], n });
+			firstTrack += n;
+			noTracks -= n;
+		}
+		return ranges;
+	}
+}
@@ -0,0 +1,140 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/*
+ * Tracks written since a checkpoint, persisted in a sidecar file.
+ *
+ * Sidecar file is:
+ *  - magic
+ *  - number of tracks
+ *  - bitmap of the tracks as longs, a bit is set for a written track
+ *
+ * A track which is written the first time since the last save is appended to a log file before the
+ * track is stored, the log is emptied by the next save. The bitmap is always complete together with
+ * the log, after a crash the bitmap of the last save and the tracks of the log are loaded.
+ */
+class DirtyTrackBitmap {
+
+	private static final int MAGIC = 0x44495254; // "DIRT"
+
+	private final Path path;
+	private final Path logPath;
+	private final int noTracks;
+	private final BitSet tracks;
+	private FileChannel log;
+
+	DirtyTrackBitmap(Path path, int noTracks) {
+		this.path = path;
+		this.logPath = getLogPath(path);
+		this.noTracks = noTracks;
+		this.tracks = new BitSet(noTracks);
+	}
+
+	static Path getLogPath(Path path) {
+		return path.resolveSibling(path.getFileName() + ".log");
+	}
+
+	/**
+	 * marks a track as written, a track which is new since the last save is logged durably
+	 * @param track
+	 * @throws IOException
+	 */
+	synchronized void set(long track) throws IOException {
+		if(track < 0 || track >= noTracks || tracks.get((int) track))
+			return;
+
+		if(log == null)
+			log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+		ByteBuffer bb = ByteBuffer.allocate(Integer.BYTES);
+		bb.putInt(0, (int) track);
+		while(bb.hasRemaining())
+			log.write(bb);
+		tracks.set((int) track);
+	}
+
+	/**
+	 * @param firstTrack
+	 * @param noTracks
+	 * @return the written tracks of the range, bit 0 is the first track
+	 */
+	synchronized BitSet get(long firstTrack, int noTracks) {
+		return tracks.get((int) firstTrack, (int) firstTrack + noTracks);
+	}
+
+	void load() throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(path));
+		if(bb.remaining() < 8 || bb.getInt() != MAGIC || bb.getInt() != noTracks)
+			throw new IOException("Dirty track bitmap " + path + " doesn't match the image");
+
+		synchronized (this) {
+			long[] words = new long[bb.remaining() / Long.BYTES];
+			bb.asLongBuffer().get(words);
+			tracks.clear();
+			tracks.or(BitSet.valueOf(words));
+
+			if(Files.exists(logPath)) {
+				/* a partial record of a crash is ignored, its track wasn't stored yet */
+				ByteBuffer lb = ByteBuffer.wrap(Files.readAllBytes(logPath));
+				int logged = 0;
+				while(lb.remaining() >= Integer.BYTES) {
+					int track = lb.getInt();
+					if(track >= 0 && track < noTracks) {
+						tracks.set(track);
+						logged++;
+					}
+				}
+				if(logged > 0)
+					System.out.printf("Dirty track bitmap %s: %d tracks written since the last save\n", path, logged);
+			}
+		}
+	}
+
+	/**
+	 * save the bitmap, the sidecar file is replaced atomically and the log is emptied
+	 * @throws IOException
+	 */
+	synchronized void save() throws IOException {
+		long[] words = tracks.toLongArray();
+
+		ByteBuffer bb = ByteBuffer.allocate(8 + words.length * Long.BYTES);
+		bb.putInt(MAGIC);
+		bb.putInt(noTracks);
+		bb.asLongBuffer().put(words);
+		bb.rewind();
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(bb.hasRemaining())
+				fc.write(bb);
+			fc.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		/* the logged tracks are in the saved bitmap now */
+		if(log != null)
+			log.truncate(0);
+		else
+			Files.deleteIfExists(logPath);
+	}
+
+	synchronized void close() throws IOException {
+		if(log != null) {
+			log.close();
+			log = null;
+		}
+	}
+
+	synchronized void delete() throws IOException {
+		close();
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(logPath);
+	}
+}
@@ -0,0 +1,72 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Selector thread which serves the I/O of many connections.
+ * Other threads hand over work by execute(), e.g. to enable write interest after queueing a reply.
+ */
+class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final Thread thread;
+
+	EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * run the task in the event loop thread
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if(Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, "select failed!", e);
+				return;
+			}
+
+			for(Runnable task; (task = tasks.poll()) != null; ) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if(key.isValid()) {
+					((NbdConnection) key.attachment()).handleEvent(key);
+				}
+			}
+		}
+	}
+}
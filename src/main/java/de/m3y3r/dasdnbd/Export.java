@@ -0,0 +1,187 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/*
+ * Offline export of a dataset to a raw image file or stdout.
+ * Several chunks of tracks are read at once, the tracks of a chunk are read in physical order
+ * and decompressed in parallel. All zero tracks are left as holes in an output file.
+ *
+ * With --changed-since only the tracks written since the checkpoint are written into an existing
+ * output file, e.g. a copy of the last full backup, for incremental backups.
+ */
+public class Export {
+
+	private static final int TRACK_DATA_SIZE = CountKeyDataDasd.TRACK_DATA_SIZE;
+	private static final int TRACKS_PER_CHUNK = 256;
+	private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+
+	public static void main(String... args) throws IOException {
+		String checkpoint = null;
+		if(args.length == 5 && "--changed-since".equals(args[0])) {
+			checkpoint = args[1];
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if(args.length != 3 || (checkpoint != null && "-".equals(args[2]))) {
+			System.err.println("usage: Export [--changed-since <checkpoint>] <image> <dataset[@snapshot]> <output file or - for stdout>");
+			System.exit(1);
+		}
+
+		/* stdout is for the data only */
+		System.setOut(System.err);
+
+		try(CountKeyDataDasd ckd = new CountKeyDataDasd(args[0], true)) {
+			long size = ckd.getPartitionSize(args[1]);
+			if(size < 0)
+				throw new IllegalArgumentException("Unknown dataset " + args[1]);
+
+			long start = System.nanoTime();
+			if(checkpoint != null) {
+				try(FileChannel out = FileChannel.open(Paths.get(args[2]), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+					long written = exportWrittenTracks(ckd, args[1], checkpoint, size, out);
+					long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+					System.err.printf("Exported %d bytes of %s written since %s in %d ms\n", written, args[1], checkpoint, ms);
+				}
+				return;
+			}
+			if("-".equals(args[2])) {
+				try(FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+					export(ckd, args[1], size, out, false);
+				}
+			} else {
+				try(FileChannel out = FileChannel.open(Paths.get(args[2]), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					export(ckd, args[1], size, out, true);
+				}
+			}
+			long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			System.err.printf("Exported %d bytes of %s in %d ms - %d MiB/s\n", size, args[1], ms, size * 1000 / ms / (1024 * 1024));
+		}
+	}
+
+	/**
+	 * @param ckd
+	 * @param exportName
+	 * @param size
+	 * @param out
+	 * @param sparse out is a file channel, all zero tracks are not written
+	 * @throws IOException
+	 */
+	static void export(CountKeyDataDasd ckd, String exportName, long size, WritableByteChannel out, boolean sparse) throws IOException {
+		Deque<CompletableFuture<ByteBuffer>> chunks = new ArrayDeque<>();
+		long readOffset = 0, writeOffset = 0;
+
+		while(writeOffset < size) {
+			while(readOffset < size && chunks.size() < MAX_CHUNKS_IN_FLIGHT) {
+				int len = (int) Math.min((long) TRACKS_PER_CHUNK * TRACK_DATA_SIZE, size - readOffset);
+				chunks.add(ckd.readDataByOffsetAsync(exportName, readOffset, len));
+				readOffset += len;
+			}
+
+			ByteBuffer chunk;
+			try {
+				chunk = chunks.poll().join();
+			} catch(CompletionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw e;
+			}
+			chunk.flip();
+
+			if(sparse) {
+				FileChannel fc = (FileChannel) out;
+				while(chunk.hasRemaining()) {
+					ByteBuffer track = chunk.slice();
+					track.limit(Math.min(TRACK_DATA_SIZE, track.remaining()));
+					chunk.position(chunk.position() + track.limit());
+
+					if(!isZero(track)) {
+						while(track.hasRemaining())
+							writeOffset += fc.write(track, writeOffset);
+					} else {
+						writeOffset += track.limit();
+					}
+				}
+			} else {
+				while(chunk.hasRemaining())
+					writeOffset += out.write(chunk);
+			}
+		}
+
+		/* a hole at the end doesn't extend the file */
+		if(sparse && ((FileChannel) out).size() < size) {
+			((FileChannel) out).write(ByteBuffer.allocate(1), size - 1);
+		}
+	}
+
+	/**
+	 * writes the tracks which were written since the checkpoint, at their offset
+	 * @param ckd
+	 * @param exportName
+	 * @param checkpoint
+	 * @param size
+	 * @param out
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	static long exportWrittenTracks(CountKeyDataDasd ckd, String exportName, String checkpoint, long size, FileChannel out) throws IOException {
+		int noTracks = (int) ((size + TRACK_DATA_SIZE - 1) / TRACK_DATA_SIZE);
+		BitSet tracks = ckd.getWrittenTracks(exportName, checkpoint, 0, noTracks);
+
+		Deque<CompletableFuture<ByteBuffer>> chunks = new ArrayDeque<>();
+		Deque<Long> chunkOffsets = new ArrayDeque<>();
+		long written = 0;
+		int t = tracks.nextSetBit(0);
+		while(t >= 0 && t < noTracks || !chunks.isEmpty()) {
+			/* runs of written tracks, split into chunks */
+			while(t >= 0 && t < noTracks && chunks.size() < MAX_CHUNKS_IN_FLIGHT) {
+				int runEnd = Math.min(tracks.nextClearBit(t), Math.min(noTracks, t + TRACKS_PER_CHUNK));
+				long offset = (long) t * TRACK_DATA_SIZE;
+				int len = (int) (Math.min((long) runEnd * TRACK_DATA_SIZE, size) - offset);
+				chunks.add(ckd.readDataByOffsetAsync(exportName, offset, len));
+				chunkOffsets.add(offset);
+				t = tracks.nextSetBit(runEnd);
+			}
+
+			ByteBuffer chunk;
+			try {
+				chunk = chunks.poll().join();
+			} catch(CompletionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw e;
+			}
+			chunk.flip();
+
+			long offset = chunkOffsets.poll();
+			while(chunk.hasRemaining())
+				written += out.write(chunk, offset + chunk.position());
+		}
+
+		/* a new output file gets the size of the dataset */
+		if(out.size() < size)
+			out.write(ByteBuffer.allocate(1), size - 1);
+		return written;
+	}
+
+	private static boolean isZero(ByteBuffer bb) {
+		ByteBuffer b = bb.duplicate();
+		while(b.remaining() >= Long.BYTES)
+			if(b.getLong() != 0) return false;
+		while(b.hasRemaining())
+			if(b.get() != 0) return false;
+		return true;
+	}
+}
@@ -0,0 +1,223 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Asynchronous mirror of the track writes into a second image of the same device, e.g. on another disk.
+ * The stored tracks are queued as they are, i.e. compressed, and written into the mirror by a single thread
+ * in the order of the writes, so the mirror has the state of the image some writes ago.
+ * A track is queued without blocking after it's stored in the image, while the lock of the image is held,
+ * which keeps the order of the writes. A writer waits for a full queue only after it released the lock,
+ * so a slow mirror slows down the writes but not the reads of the image.
+ * The mirror is synced when the queue runs empty and for a flush which waits for the mirror.
+ */
+class ImageMirror implements Closeable {
+
+	private static final int QUEUE_SIZE = Integer.getInteger("dasdnbd.mirrorQueueSize", 1024); // tracks, writers wait above
+
+	private final CountKeyDataDasd target;
+	private final String fileName;
+	private final boolean waitOnFlush;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+	private final Thread thread;
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong syncedTracks = new AtomicLong(); // tracks copied by the initial sync
+	private final long noTracks;
+	private volatile long tracksWritten;
+	private volatile boolean synced;
+	private volatile Exception failure;
+
+	/**
+	 * @param target opened image of the mirror
+	 * @param fileName
+	 * @param noTracks tracks of the device
+	 * @param waitOnFlush a flush is completed when the mirror is synced too
+	 */
+	ImageMirror(CountKeyDataDasd target, String fileName, long noTracks, boolean waitOnFlush) {
+		this.target = target;
+		this.fileName = fileName;
+		this.noTracks = noTracks;
+		this.waitOnFlush = waitOnFlush;
+		this.thread = new Thread(this::run, "mirror");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	boolean isWaitOnFlush() {
+		return waitOnFlush;
+	}
+
+	/**
+	 * copy of a track for the mirror, the buffers are written into the image and reused
+	 * @param trackHeader
+	 * @param trackData compressed data
+	 * @return track header and compressed data
+	 */
+	static ByteBuffer copyTrack(ByteBuffer trackHeader, ByteBuffer trackData) {
+		ByteBuffer storedTrack = ByteBuffer.allocate(trackHeader.remaining() + trackData.remaining());
+		storedTrack.put(trackHeader.duplicate());
+		storedTrack.put(trackData.duplicate());
+		storedTrack.flip();
+		return storedTrack;
+	}
+
+	/**
+	 * queues a track for the mirror as it's stored in the image, never blocks, see awaitCapacity
+	 * @param track
+	 * @param nullFormat format of a null track, -1 for a stored track
+	 * @param storedTrack track header and compressed data, null for a null track
+	 */
+	void write(long track, int nullFormat, ByteBuffer storedTrack) {
+		put(new Entry(track, nullFormat, storedTrack, null));
+	}
+
+	/**
+	 * waits while the queue is full, called by a writer without lock of the image
+	 * @throws IOException
+	 */
+	void awaitCapacity() throws IOException {
+		try {
+			synchronized (this) {
+				while(queue.size() > QUEUE_SIZE && failure == null)
+					wait(1000);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Write to mirror interrupted");
+		}
+	}
+
+	/**
+	 * @return completed when the writes queued until now are synced in the mirror
+	 */
+	CompletableFuture<Void> flush() {
+		CompletableFuture<Void> flushed = new CompletableFuture<>();
+		put(new Entry(-1, -1, null, flushed));
+		return flushed;
+	}
+
+	void setSynced() {
+		synced = true;
+		System.out.printf("Initial sync of mirror %s done\n", fileName);
+	}
+
+	void addSyncedTracks(long tracks) {
+		syncedTracks.addAndGet(tracks);
+	}
+
+	/* a failed mirror is given up, the writes of the image go on without it */
+	private void put(Entry e) {
+		if(failure == null) {
+			if(e.storedTrack != null)
+				queuedBytes.addAndGet(e.storedTrack.remaining());
+			queue.add(e);
+		}
+		/* the mirror may have failed meanwhile and drained the queue */
+		if(failure != null && e.flushed != null)
+			e.flushed.completeExceptionally(failure);
+	}
+
+	private void run() {
+		try {
+			while(true) {
+				Entry e = queue.take();
+				if(queue.size() <= QUEUE_SIZE) {
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+				if(e == Entry.CLOSE)
+					break;
+				if(e.flushed != null) {
+					target.sync();
+					e.flushed.complete(null);
+					continue;
+				}
+
+				target.writeMirroredTrack(e.track, e.nullFormat, e.storedTrack);
+				tracksWritten++;
+				if(e.storedTrack != null)
+					queuedBytes.addAndGet(-e.storedTrack.remaining());
+				if(queue.isEmpty())
+					target.sync();
+			}
+			target.sync();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(IOException | RuntimeException e) {
+			System.out.printf("Mirror %s failed, writes are not mirrored anymore: %s\n", fileName, e);
+			e.printStackTrace();
+			failure = e;
+			synchronized (this) {
+				notifyAll();
+			}
+			List<Entry> pending = new ArrayList<>();
+			queue.drainTo(pending);
+			for(Entry p : pending)
+				if(p.flushed != null)
+					p.flushed.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @return replication lag and progress of the initial sync
+	 */
+	Map<String, Number> getStatus() {
+		Map<String, Number> s = new HashMap<>();
+		Entry oldest = queue.peek();
+		s.put("queuedTracks", queue.size());
+		s.put("queuedBytes", queuedBytes.get());
+		s.put("lagMillis", oldest != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueued) : 0L);
+		s.put("tracksWritten", tracksWritten);
+		s.put("syncedTracks", synced ? noTracks : syncedTracks.get());
+		s.put("noTracks", noTracks);
+		s.put("failed", failure != null ? 1 : 0);
+		return s;
+	}
+
+	/* writes the queued tracks into the mirror and closes it */
+	@Override
+	public void close() throws IOException {
+		try {
+			queue.add(Entry.CLOSE);
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Close of mirror interrupted");
+		} finally {
+			target.close();
+		}
+	}
+
+	private static class Entry {
+		static final Entry CLOSE = new Entry(-1, -1, null, null);
+
+		final long track;
+		final int nullFormat;
+		final ByteBuffer storedTrack;
+		final CompletableFuture<Void> flushed;
+		final long enqueued = System.nanoTime();
+
+		Entry(long track, int nullFormat, ByteBuffer storedTrack, CompletableFuture<Void> flushed) {
+			this.track = track;
+			this.nullFormat = nullFormat;
+			this.storedTrack = storedTrack;
+			this.flushed = flushed;
+		}
+	}
+}
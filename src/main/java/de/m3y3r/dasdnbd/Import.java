@@ -0,0 +1,28 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+
+/*
+ * Offline bulk import of a raw image into a dataset, the server must not run on the image meanwhile.
+ */
+public class Import {
+
+	public static void main(String... args) throws IOException {
+		if(args.length != 3) {
+			System.err.println("usage: Import <image> <dataset> <raw image or - for stdin>");
+			System.exit(1);
+		}
+
+		try(CountKeyDataDasd ckd = new CountKeyDataDasd(args[0]);
+				ReadableByteChannel in = "-".equals(args[2]) ? Channels.newChannel(System.in) : FileChannel.open(Paths.get(args[2]))) {
+			long start = System.nanoTime();
+			long noTracks = ckd.importData(args[1], in);
+			long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			System.out.printf("Imported %d tracks into %s in %d ms - %s\n", noTracks, args[1], ms, ckd.getCompressionStatistics());
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Sequential write-ahead journal for the metadata of a compressed CKD image,
+ * i.e. level 1/2 entries, free space blocks and the compressed device header.
+ *
+ * Journal record is:
+ *  - magic
+ *  - type (update or commit)
+ *  - position in image file
+ *  - length of data
+ *  - data
+ *  - crc32 of all fields above
+ *
+ * The updates are applied to the image only after they are committed, so the image never has
+ * metadata of an uncommitted transaction and only updates followed by a commit record are replayed.
+ */
+class MetadataJournal implements Closeable {
+
+	private static final int RECORD_MAGIC = 0x4a524e4c; // "JRNL"
+	private static final int RECORD_HEADER_LENGTH = 4 + 1 + 8 + 4;
+	private static final int RECORD_TRAILER_LENGTH = 4;
+
+	private static final byte TYPE_UPDATE = 1;
+	private static final byte TYPE_COMMIT = 2;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final List<ByteBuffer> pending;
+	private long pendingSize;
+	private long size;
+
+	MetadataJournal(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.pending = new ArrayList<>();
+		this.size = channel.size();
+	}
+
+	/**
+	 * log a metadata update, the update is written to the journal on the next commit
+	 * @param imagePosition position of the data in the image file
+	 * @param data
+	 */
+	synchronized void log(long imagePosition, ByteBuffer data) {
+		ByteBuffer record = createRecord(TYPE_UPDATE, imagePosition, data.duplicate());
+		pending.add(record);
+		pendingSize += record.remaining();
+	}
+
+	/* bytes of the updates which aren't committed yet */
+	synchronized long pendingSize() {
+		return pendingSize;
+	}
+
+	/**
+	 * write all pending updates followed by a commit record and force them to disk,
+	 * then apply the updates to the image
+	 * @param image
+	 * @throws IOException
+	 */
+	synchronized void commit(FileChannel image) throws IOException {
+		pending.add(createRecord(TYPE_COMMIT, 0, ByteBuffer.allocate(0)));
+
+		ByteBuffer[] records = pending.toArray(new ByteBuffer[pending.size()]);
+		channel.position(size);
+		long len = 0;
+		for(ByteBuffer r : records) len += r.remaining();
+		for(long written = 0; written < len; ) {
+			written += channel.write(records);
+		}
+		channel.force(false);
+		size += len;
+
+		for(ByteBuffer r : pending) {
+			r.rewind();
+			if(r.get(4) == TYPE_UPDATE) {
+				ByteBuffer data = r.duplicate();
+				data.position(RECORD_HEADER_LENGTH);
+				data.limit(r.limit() - RECORD_TRAILER_LENGTH);
+				apply(image, r.getLong(5), data);
+			}
+		}
+		pending.clear();
+		pendingSize = 0;
+	}
+
+	synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * discard the journal content, all updates must be applied to the image before
+	 * @throws IOException
+	 */
+	synchronized void reset() throws IOException {
+		channel.truncate(0);
+		channel.force(true);
+		size = 0;
+		pending.clear();
+		pendingSize = 0;
+	}
+
+	/**
+	 * apply all committed updates to the image
+	 * @param image
+	 * @return number of replayed transactions
+	 * @throws IOException
+	 */
+	synchronized int replay(FileChannel image) throws IOException {
+		List<ByteBuffer[]> updates = new ArrayList<>();
+		int noTransactions = 0;
+
+		long pos = 0;
+		while(pos + RECORD_HEADER_LENGTH + RECORD_TRAILER_LENGTH <= size) {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+			readFully(header, pos);
+			header.flip();
+
+			if(header.getInt() != RECORD_MAGIC) break;
+			byte type = header.get();
+			long imagePosition = header.getLong();
+			int len = header.getInt();
+			if(len < 0 || pos + RECORD_HEADER_LENGTH + len + RECORD_TRAILER_LENGTH > size) break;
+
+			ByteBuffer data = ByteBuffer.allocate(len + RECORD_TRAILER_LENGTH);
+			readFully(data, pos + RECORD_HEADER_LENGTH);
+			data.flip();
+
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, RECORD_HEADER_LENGTH);
+			crc.update(data.array(), 0, len);
+			if((int) crc.getValue() != data.getInt(len)) break; // torn write
+
+			data.limit(len);
+			switch(type) {
+			case TYPE_UPDATE:
+				ByteBuffer ip = ByteBuffer.allocate(Long.BYTES);
+				ip.putLong(0, imagePosition);
+				updates.add(new ByteBuffer[] {ip, data});
+				break;
+			case TYPE_COMMIT:
+				for(ByteBuffer[] u : updates)
+					apply(image, u[0].getLong(0), u[1]);
+				updates.clear();
+				noTransactions++;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown journal record type " + type);
+			}
+			pos += RECORD_HEADER_LENGTH + len + RECORD_TRAILER_LENGTH;
+		}
+
+		System.out.printf("Journal %s - replayed %d transactions - discarded %d updates\n", path, noTransactions, updates.size());
+		return noTransactions;
+	}
+
+	private static void apply(FileChannel image, long imagePosition, ByteBuffer data) throws IOException {
+		while(data.hasRemaining()) {
+			imagePosition += image.write(data, imagePosition);
+		}
+	}
+
+	private void readFully(ByteBuffer bb, long pos) throws IOException {
+		while(bb.hasRemaining()) {
+			int l = channel.read(bb, pos + bb.position());
+			if(l < 0) throw new IOException("unexpected end of journal " + path);
+		}
+	}
+
+	private ByteBuffer createRecord(byte type, long imagePosition, ByteBuffer data) {
+		int len = data.remaining();
+		ByteBuffer r = ByteBuffer.allocate(RECORD_HEADER_LENGTH + len + RECORD_TRAILER_LENGTH);
+		r.putInt(RECORD_MAGIC);
+		r.put(type);
+		r.putLong(imagePosition);
+		r.putInt(len);
+		r.put(data);
+
+		CRC32 crc = new CRC32();
+		crc.update(r.array(), 0, r.position());
+		r.putInt((int) crc.getValue());
+		r.flip();
+		return r;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+		if(size == 0 && pending.isEmpty()) {
+			Files.deleteIfExists(path);
+		}
+	}
+}
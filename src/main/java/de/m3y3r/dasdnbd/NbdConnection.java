@@ -0,0 +1,721 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * State machine of one nbd client connection, driven by an event loop.
+ * The DASD work is queued at the request scheduler and done by its workers, replies are queued and written by the event loop.
+ */
+class NbdConnection {
+
+	private static final int MAX_IN_FLIGHT = 64; /* max outstanding requests, stop reading requests above */
+	private static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024; /* max queued reply bytes, stop reading requests above */
+	private static final int MAX_OPTION_LENGTH = 4096;
+	private static final long MAX_REQUEST_LENGTH = 32 * 1024 * 1024;
+
+	private static final long NBD_MAGIC = 0x4e42444d41474943l; /* "NBDMAGIC" */
+	private static final long NBD_OPTS_MAGIC = 0x49484156454F5054l; /* "IHAVEOPT" */
+	private static final long NBD_REP_MAGIC = 0x3e889045565a9l;
+	private static final int NBD_REQUEST_MAGIC = 0x25609513;
+	private static final int NBD_SIMPLE_REPLY_MAGIC = 0x67446698;
+	private static final int NBD_STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+
+	/* global flags */
+	private static final int NBD_FLAG_FIXED_NEWSTYLE = 1 << 0; /* new-style export that actually supports extending */
+	private static final int NBD_FLAG_NO_ZEROES = 1 << 1; /* we won't send the 128 bits of zeroes if the client sends NBD_FLAG_C_NO_ZEROES */
+
+	/* Options that the client can select to the server */
+	private static final int NBD_OPT_EXPORT_NAME = 1; /** Client wants to select a named export (is followed by name of export) */
+	private static final int NBD_OPT_ABORT = 2; /** Client wishes to abort negotiation */
+	private static final int NBD_OPT_LIST = 3;
+	private static final int NBD_OPT_INFO = 6;
+	private static final int NBD_OPT_GO = 7;
+	private static final int NBD_OPT_STRUCTURED_REPLY = 8;
+	private static final int NBD_OPT_LIST_META_CONTEXT = 9;
+	private static final int NBD_OPT_SET_META_CONTEXT = 10;
+
+	/* values for transmission flags field */
+	private static final int NBD_FLAG_HAS_FLAGS = (1 << 0); /* Flags are there */
+	private static final int NBD_FLAG_READ_ONLY = (1 << 1); /* Device is read-only */
+	private static final int NBD_FLAG_SEND_FLUSH = (1 << 2); /* Send FLUSH */
+	private static final int NBD_FLAG_SEND_FUA = (1 << 3); /* Send FUA (Force Unit Access) */
+	private static final int NBD_FLAG_ROTATIONAL = (1 << 4); /* Use elevator algorithm - rotational media */
+	private static final int NBD_FLAG_SEND_TRIM = (1 << 5); /* Send TRIM (discard) */
+	private static final int NBD_FLAG_SEND_CACHE = (1 << 10); /* Send CACHE (prefetch) */
+
+	private static final int NBD_CMD_READ = 0;
+	private static final int NBD_CMD_WRITE = 1;
+	private static final int NBD_CMD_DISC = 2;
+	private static final int NBD_CMD_FLUSH = 3;
+	private static final int NBD_CMD_TRIM = 4;
+	private static final int NBD_CMD_CACHE = 5;
+	private static final int NBD_CMD_BLOCK_STATUS = 7;
+
+	private static final int NBD_CMD_FLAG_REQ_ONE = (1 << 3); /* block status of the first extent only */
+
+	/* structured replies */
+	private static final short NBD_REPLY_FLAG_DONE = (1 << 0);
+	private static final short NBD_REPLY_TYPE_NONE = 0;
+	private static final short NBD_REPLY_TYPE_OFFSET_DATA = 1;
+	private static final short NBD_REPLY_TYPE_BLOCK_STATUS = 5;
+	private static final short NBD_REPLY_TYPE_ERROR = (short) ((1 << 15) + 1);
+
+	/* meta contexts of the block status and their flags */
+	private static final String META_CONTEXT_ALLOCATION = "base:allocation";
+	private static final String META_CONTEXT_DIRTY_BITMAP = "qemu:dirty-bitmap:"; // followed by the name of the checkpoint
+	private static final int NBD_STATE_HOLE = (1 << 0);
+	private static final int NBD_STATE_ZERO = (1 << 1);
+	private static final int NBD_STATE_DIRTY = (1 << 0);
+
+	private static final int NBD_REP_ACK = 1;
+	private static final int NBD_REP_INFO = 3;
+	private static final int NBD_REP_META_CONTEXT = 4;
+	private static final int NBD_REP_FLAG_ERROR = (1 << 31); /** If the high bit is set, the reply is an error */
+	private static final int NBD_REP_ERR_UNSUP = (1 | NBD_REP_FLAG_ERROR); /** Client requested an option not understood by this version of the server */
+	private static final int NBD_REP_ERR_POLICY = (2 | NBD_REP_FLAG_ERROR); /** Client requested an option not allowed by server configuration. (e.g., the option was disabled) */
+	private static final int NBD_REP_ERR_INVALID = (3 | NBD_REP_FLAG_ERROR); /** Client issued an invalid request */
+	private static final int NBD_REP_ERR_PLATFORM = (4 | NBD_REP_FLAG_ERROR);
+	private static final int NBD_REP_ERR_UNKNOWN = (6 | NBD_REP_FLAG_ERROR); /** Unknown export */
+
+	private static final short NBD_INFO_EXPORT = 0;
+
+	/* error values of simple replies */
+	private static final int EPERM = 1;
+	private static final int EIO = 5;
+	private static final int EINVAL = 22;
+
+	private enum State {
+		CLIENT_FLAGS, OPTION_HEADER, OPTION_DATA, REQUEST_HEADER, WRITE_PAYLOAD
+	}
+
+	private final SocketChannel channel;
+	private final EventLoop eventLoop;
+	private final CountKeyDataDasd ckd;
+	private final RequestScheduler scheduler;
+	private final BufferPool bufferPool;
+
+	private SelectionKey key;
+	private State state;
+	private ByteBuffer readBuffer;
+
+	/* replies, written by the event loop */
+	private final Deque<ByteBuffer> writeQueue;
+	private long queuedBytes; // guarded by writeQueue
+	private final AtomicInteger inFlight;
+	private boolean disconnecting;
+
+	private int clientFlags;
+	private int option;
+	private String exportName;
+	private boolean structuredReplies;
+	private String metaContextExport; // export of the selected meta contexts
+	private List<String> metaContexts = Collections.emptyList(); // selected meta contexts, the index is the context id
+
+	/* current request */
+	private short commandFlags;
+	private short type;
+	private long handle;
+	private long offset;
+	private long length;
+
+	NbdConnection(SocketChannel channel, EventLoop eventLoop, CountKeyDataDasd ckd, RequestScheduler scheduler) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.ckd = ckd;
+		this.scheduler = scheduler;
+		this.writeQueue = new ArrayDeque<>();
+		this.inFlight = new AtomicInteger();
+		this.bufferPool = new BufferPool();
+	}
+
+	/**
+	 * register at the event loop selector and initiate the handshake, must be called by the event loop
+	 */
+	void register() {
+		try {
+			key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			Logger.getLogger(NbdConnection.class.getName()).log(Level.SEVERE, "register failed!", e);
+			close();
+			return;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(18);
+		bb.putLong(NBD_MAGIC);
+		bb.putLong(NBD_OPTS_MAGIC);
+
+		/* "Global flags" */
+		short flags = NBD_FLAG_FIXED_NEWSTYLE | NBD_FLAG_NO_ZEROES;
+		bb.putShort(flags);
+		bb.flip();
+		queue(bb);
+
+		expect(State.CLIENT_FLAGS, 4);
+		updateInterest();
+	}
+
+	void handleEvent(SelectionKey key) {
+		try {
+			if(key.isReadable()) {
+				onReadable();
+			}
+			if(key.isValid() && key.isWritable()) {
+				onWritable();
+			}
+			updateInterest();
+		} catch (IOException | RuntimeException e) {
+			Logger.getLogger(NbdConnection.class.getName()).log(Level.SEVERE, "connection failed!", e);
+			close();
+		}
+	}
+
+	private void onReadable() throws IOException {
+		while(key.isValid() && !disconnecting && !isReadPaused()) {
+			if(!readBuffer.hasRemaining()) {
+				readBuffer.flip();
+				process();
+				continue;
+			}
+
+			int len = channel.read(readBuffer);
+			if(len < 0) {
+				/* client went away */
+				close();
+				return;
+			}
+			if(len == 0)
+				return;
+		}
+	}
+
+	private void onWritable() throws IOException {
+		synchronized (writeQueue) {
+			while(!writeQueue.isEmpty()) {
+				ByteBuffer[] bbs = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+				long len = channel.write(bbs);
+				queuedBytes -= len;
+				while(!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+					bufferPool.release(writeQueue.poll());
+				}
+				if(len == 0)
+					break;
+			}
+		}
+	}
+
+	/* update selector interest, must be called by the event loop */
+	private void updateInterest() {
+		if(!key.isValid())
+			return;
+
+		boolean pendingWrites;
+		synchronized (writeQueue) {
+			pendingWrites = !writeQueue.isEmpty();
+		}
+
+		if(disconnecting && !pendingWrites && inFlight.get() == 0) {
+			close();
+			return;
+		}
+
+		int ops = 0;
+		if(pendingWrites) ops |= SelectionKey.OP_WRITE;
+		if(!disconnecting && !isReadPaused()) ops |= SelectionKey.OP_READ;
+		key.interestOps(ops);
+	}
+
+	/* back-pressure, stop reading new requests */
+	private boolean isReadPaused() {
+		if(inFlight.get() >= MAX_IN_FLIGHT)
+			return true;
+		synchronized (writeQueue) {
+			return queuedBytes >= MAX_QUEUED_BYTES;
+		}
+	}
+
+	private void expect(State state, int len) {
+		this.state = state;
+		this.readBuffer = bufferPool.acquire(len);
+	}
+
+	private void process() throws IOException {
+		/* the write payload is handed over to the worker, all other buffers are done after processing */
+		State s = state;
+		ByteBuffer bb = readBuffer;
+		processMessage();
+		if(s != State.WRITE_PAYLOAD)
+			bufferPool.release(bb);
+	}
+
+	private void processMessage() throws IOException {
+		switch(state) {
+		case CLIENT_FLAGS:
+			clientFlags = readBuffer.getInt();
+			if((clientFlags & NBD_FLAG_FIXED_NEWSTYLE) == 0) throw new IllegalArgumentException("client doesn't support fixed newstyle");
+			expect(State.OPTION_HEADER, 16);
+			break;
+
+		case OPTION_HEADER:
+		{
+			if(readBuffer.getLong() != NBD_OPTS_MAGIC) throw new IllegalArgumentException("invalid option magic");
+			option = readBuffer.getInt();
+			long optionLen = ByteUtil.u32ToLong(readBuffer.getInt());
+			if(optionLen > MAX_OPTION_LENGTH) throw new IllegalArgumentException("option too long " + optionLen);
+			expect(State.OPTION_DATA, (int) optionLen);
+			break;
+		}
+
+		case OPTION_DATA:
+			processOption();
+			break;
+
+		case REQUEST_HEADER:
+			if(readBuffer.getInt() != NBD_REQUEST_MAGIC) throw new IllegalArgumentException("invalid request magic");
+
+			commandFlags = readBuffer.getShort();
+			type = readBuffer.getShort();
+			handle = readBuffer.getLong();
+			offset = readBuffer.getLong(); //FIXME: unsigned!
+			length = ByteUtil.u32ToLong(readBuffer.getInt());
+
+			if(type == NBD_CMD_WRITE) {
+				if(length > MAX_REQUEST_LENGTH) throw new IllegalArgumentException("write request too long " + length);
+				expect(State.WRITE_PAYLOAD, (int) length);
+			} else {
+				processRequest(null);
+				expect(State.REQUEST_HEADER, 28);
+			}
+			break;
+
+		case WRITE_PAYLOAD:
+			processRequest(readBuffer);
+			expect(State.REQUEST_HEADER, 28);
+			break;
+		}
+	}
+
+	private void processOption() throws IOException {
+		switch(option) {
+		case NBD_OPT_EXPORT_NAME:
+		{
+			byte[] nba = new byte[readBuffer.remaining()];
+			readBuffer.get(nba);
+			exportName = new String(nba, StandardCharsets.UTF_8);
+
+			long exportSize = ckd.getPartitionSize(exportName);
+			if(exportSize < 0) {
+				/* there is no error reply for NBD_OPT_EXPORT_NAME, the server has to close the connection */
+				throw new IllegalArgumentException("Unknown export " + exportName);
+			}
+			System.out.println(exportName);
+
+			/* build response */
+			ByteBuffer bb = ByteBuffer.allocate(10);
+			bb.putLong(exportSize);
+			bb.putShort(getTransmissionFlags(exportName));
+			bb.flip();
+			queue(bb);
+
+			if((clientFlags & NBD_FLAG_NO_ZEROES) == 0) {
+				queue(ByteBuffer.allocate(124));
+			}
+
+			expect(State.REQUEST_HEADER, 28);
+			break;
+		}
+		case NBD_OPT_INFO:
+		case NBD_OPT_GO:
+		{
+			String name;
+			try {
+				name = readString(readBuffer);
+			} catch(BufferUnderflowException | IllegalArgumentException e) {
+				sendOptionHagglingReply(option, NBD_REP_ERR_INVALID, null);
+				expect(State.OPTION_HEADER, 16);
+				break;
+			}
+
+			long exportSize = ckd.getPartitionSize(name);
+			if(exportSize < 0) {
+				sendOptionHagglingReply(option, NBD_REP_ERR_UNKNOWN, null);
+				expect(State.OPTION_HEADER, 16);
+				break;
+			}
+
+			/* the requested information items are ignored, the export information is mandatory anyway */
+			ByteBuffer info = ByteBuffer.allocate(12);
+			info.putShort(NBD_INFO_EXPORT);
+			info.putLong(exportSize);
+			info.putShort(getTransmissionFlags(name));
+			info.flip();
+			sendOptionHagglingReply(option, NBD_REP_INFO, info);
+			sendOptionHagglingReply(option, NBD_REP_ACK, null);
+
+			if(option == NBD_OPT_GO) {
+				exportName = name;
+				System.out.println(exportName);
+				expect(State.REQUEST_HEADER, 28);
+			} else {
+				expect(State.OPTION_HEADER, 16);
+			}
+			break;
+		}
+		case NBD_OPT_STRUCTURED_REPLY:
+			if(readBuffer.hasRemaining()) {
+				sendOptionHagglingReply(option, NBD_REP_ERR_INVALID, null);
+			} else {
+				structuredReplies = true;
+				sendOptionHagglingReply(option, NBD_REP_ACK, null);
+			}
+			expect(State.OPTION_HEADER, 16);
+			break;
+
+		case NBD_OPT_LIST_META_CONTEXT:
+		case NBD_OPT_SET_META_CONTEXT:
+			processMetaContextOption();
+			expect(State.OPTION_HEADER, 16);
+			break;
+
+		case NBD_OPT_ABORT:
+			sendOptionHagglingReply(option, NBD_REP_ACK, null);
+			disconnecting = true;
+			break;
+
+		default:
+			sendOptionHagglingReply(option, NBD_REP_ERR_UNSUP, null);
+			expect(State.OPTION_HEADER, 16);
+		}
+	}
+
+	private short getTransmissionFlags(String exportName) {
+		short transmissionFlags = NBD_FLAG_HAS_FLAGS | NBD_FLAG_SEND_FLUSH | NBD_FLAG_ROTATIONAL | NBD_FLAG_SEND_CACHE;
+		if(ckd.isReadOnly(exportName))
+			transmissionFlags |= NBD_FLAG_READ_ONLY;
+		return transmissionFlags;
+	}
+
+	/* u32 length and UTF-8 string */
+	private static String readString(ByteBuffer bb) {
+		long len = ByteUtil.u32ToLong(bb.getInt());
+		if(len > bb.remaining()) throw new IllegalArgumentException("string too long " + len);
+		byte[] b = new byte[(int) len];
+		bb.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * meta contexts are the allocation of the tracks and the tracks written since each checkpoint,
+	 * a query of a namespace with trailing colon lists all its contexts
+	 */
+	private void processMetaContextOption() throws IOException {
+		String name;
+		List<String> queries = new ArrayList<>();
+		try {
+			name = readString(readBuffer);
+			long noQueries = ByteUtil.u32ToLong(readBuffer.getInt());
+			for(long i = 0; i < noQueries; i++)
+				queries.add(readString(readBuffer));
+		} catch(BufferUnderflowException | IllegalArgumentException e) {
+			sendOptionHagglingReply(option, NBD_REP_ERR_INVALID, null);
+			return;
+		}
+
+		boolean set = option == NBD_OPT_SET_META_CONTEXT;
+		if(set && !structuredReplies) {
+			sendOptionHagglingReply(option, NBD_REP_ERR_INVALID, null);
+			return;
+		}
+		if(ckd.getPartitionSize(name) < 0) {
+			sendOptionHagglingReply(option, NBD_REP_ERR_UNKNOWN, null);
+			return;
+		}
+
+		List<String> available = new ArrayList<>();
+		available.add(META_CONTEXT_ALLOCATION);
+		for(String checkpoint : ckd.getCheckpoints())
+			available.add(META_CONTEXT_DIRTY_BITMAP + checkpoint);
+
+		List<String> matching = new ArrayList<>();
+		for(String context : available) {
+			boolean match = !set && queries.isEmpty();
+			for(String query : queries)
+				match |= query.equals(context) || (!set && query.endsWith(":") && context.startsWith(query));
+			if(match)
+				matching.add(context);
+		}
+		if(set) {
+			metaContextExport = name;
+			metaContexts = matching;
+		}
+
+		for(int id = 0; id < matching.size(); id++) {
+			byte[] context = matching.get(id).getBytes(StandardCharsets.UTF_8);
+			ByteBuffer bb = ByteBuffer.allocate(4 + context.length);
+			bb.putInt(set ? id : 0);
+			bb.put(context);
+			bb.flip();
+			sendOptionHagglingReply(option, NBD_REP_META_CONTEXT, bb);
+		}
+		sendOptionHagglingReply(option, NBD_REP_ACK, null);
+	}
+
+	private void processRequest(ByteBuffer payload) {
+		if(type == NBD_CMD_DISC) {
+			/* close after outstanding replies are sent */
+			disconnecting = true;
+			return;
+		}
+
+		if(ckd.isReadOnly(exportName) && (type == NBD_CMD_WRITE || type == NBD_CMD_TRIM)) {
+			if(payload != null)
+				bufferPool.release(payload);
+			sendErrorReply(EPERM, handle);
+			return;
+		}
+
+		if(type == NBD_CMD_BLOCK_STATUS && (!structuredReplies || metaContexts.isEmpty() || !exportName.equals(metaContextExport))) {
+			sendErrorReply(EINVAL, handle);
+			return;
+		}
+
+		long handle = this.handle, offset = this.offset, length = this.length;
+		short type = this.type, commandFlags = this.commandFlags;
+
+		/* reads go before writes and cache hints, requests are ordered by the position of their first track */
+		RequestScheduler.Priority priority = type == NBD_CMD_READ ? RequestScheduler.Priority.READ :
+			type == NBD_CMD_CACHE ? RequestScheduler.Priority.CACHE : RequestScheduler.Priority.WRITE;
+		long position = type == NBD_CMD_FLUSH || type == NBD_CMD_BLOCK_STATUS ? -1 : ckd.getPhysicalPosition(exportName, offset);
+
+		inFlight.incrementAndGet();
+		scheduler.submit(exportName, priority, position, type == NBD_CMD_FLUSH ? 0 : length, () -> {
+			switch(type) {
+			case NBD_CMD_READ:
+			{
+				if(length > MAX_REQUEST_LENGTH) throw new IllegalArgumentException("read request too long " + length);
+				ByteBuffer data = bufferPool.acquire((int) length);
+				CompletableFuture<ByteBuffer> f = ckd.readDataByOffsetAsync(exportName, offset, data);
+				f.whenComplete((d, e) -> { if(e != null) bufferPool.release(data); });
+				return f;
+			}
+			case NBD_CMD_WRITE:
+				try {
+					ckd.writeDataByOffset(exportName, offset, payload);
+				} finally {
+					bufferPool.release(payload);
+				}
+				return CompletableFuture.completedFuture(null);
+			case NBD_CMD_FLUSH:
+				ckd.sync();
+				return ckd.syncMirror().thenApply(v -> (ByteBuffer) null);
+			case NBD_CMD_CACHE:
+				/* replied when the tracks are in the track cache */
+				return ckd.cacheDataByOffset(exportName, offset, length).thenApply(v -> (ByteBuffer) null);
+			case NBD_CMD_BLOCK_STATUS:
+				sendBlockStatus(handle, offset, length, (commandFlags & NBD_CMD_FLAG_REQ_ONE) != 0);
+				return CompletableFuture.completedFuture(null);
+//			case NBD_CMD_TRIM:
+			default:
+				throw new IllegalArgumentException("Unsupported command " + type);
+			}
+		}).whenComplete((data, e) -> {
+			if(e != null) {
+				if(e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+				Logger.getLogger(NbdConnection.class.getName()).log(Level.SEVERE, "request failed!", e);
+				sendErrorReply(e instanceof IllegalArgumentException ? EINVAL : EIO, handle);
+			} else if(type == NBD_CMD_READ) {
+				data.flip();
+				sendReadReply(handle, offset, data);
+			} else if(type != NBD_CMD_BLOCK_STATUS) {
+				/* the block status is replied by its chunks */
+				sendSimpleReply(0, handle, null);
+			}
+			inFlight.decrementAndGet();
+			eventLoop.execute(this::updateInterest);
+		});
+	}
+
+	/**
+	 * block status of the range for each selected meta context, in tracks
+	 * @param handle
+	 * @param offset
+	 * @param length
+	 * @param reqOne only the status of the first tracks of the same status
+	 * @throws IOException
+	 */
+	private void sendBlockStatus(long handle, long offset, long length, boolean reqOne) throws IOException {
+		long size = ckd.getPartitionSize(exportName);
+		if(offset < 0 || length == 0 || offset >= size)
+			throw new IllegalArgumentException("Illegal range " + offset + " length " + length + " should be within 0 and " + size);
+
+		long end = Math.min(offset + length, size);
+		long firstTrack = offset / CountKeyDataDasd.TRACK_DATA_SIZE;
+		int noTracks = (int) ((end - 1) / CountKeyDataDasd.TRACK_DATA_SIZE - firstTrack + 1);
+
+		List<ByteBuffer> chunks = new ArrayList<>();
+		for(int id = 0; id < metaContexts.size(); id++) {
+			String context = metaContexts.get(id);
+			BitSet tracks;
+			int flags;
+			if(context.equals(META_CONTEXT_ALLOCATION)) {
+				tracks = ckd.getNullTracks(exportName, firstTrack, noTracks);
+				flags = NBD_STATE_HOLE | NBD_STATE_ZERO;
+			} else {
+				tracks = ckd.getWrittenTracks(exportName, context.substring(META_CONTEXT_DIRTY_BITMAP.length()), firstTrack, noTracks);
+				flags = NBD_STATE_DIRTY;
+			}
+
+			/* one descriptor of length and flags per run of tracks with the same status */
+			ByteBuffer descriptors = ByteBuffer.allocate(4 + 8 * (reqOne ? 1 : noTracks));
+			descriptors.putInt(id);
+			for(long pos = offset; pos < end; ) {
+				int t = (int) (pos / CountKeyDataDasd.TRACK_DATA_SIZE - firstTrack);
+				boolean set = tracks.get(t);
+				int next = set ? tracks.nextClearBit(t) : tracks.nextSetBit(t);
+				if(next < 0 || next > noTracks)
+					next = noTracks;
+				long runEnd = Math.min(end, (firstTrack + next) * CountKeyDataDasd.TRACK_DATA_SIZE);
+				descriptors.putInt((int) (runEnd - pos));
+				descriptors.putInt(set ? flags : 0);
+				pos = runEnd;
+				if(reqOne)
+					break;
+			}
+			descriptors.flip();
+			chunks.add(descriptors);
+		}
+
+		synchronized (writeQueue) {
+			for(int i = 0; i < chunks.size(); i++)
+				sendStructuredReply(i == chunks.size() - 1 ? NBD_REPLY_FLAG_DONE : 0, NBD_REPLY_TYPE_BLOCK_STATUS, handle, chunks.get(i));
+		}
+	}
+
+	/* read data in a single chunk of structured replies */
+	private void sendReadReply(long handle, long offset, ByteBuffer data) {
+		if(!structuredReplies) {
+			sendSimpleReply(0, handle, data);
+			return;
+		}
+		if(!data.hasRemaining()) {
+			bufferPool.release(data);
+			sendStructuredReply(NBD_REPLY_FLAG_DONE, NBD_REPLY_TYPE_NONE, handle, null);
+			return;
+		}
+
+		ByteBuffer bbr = bufferPool.acquire(20 + 8);
+		bbr.putInt(NBD_STRUCTURED_REPLY_MAGIC);
+		bbr.putShort(NBD_REPLY_FLAG_DONE);
+		bbr.putShort(NBD_REPLY_TYPE_OFFSET_DATA);
+		bbr.putLong(handle);
+		bbr.putInt(8 + data.remaining());
+		bbr.putLong(offset);
+		bbr.flip();
+
+		synchronized (writeQueue) {
+			queue(bbr);
+			queue(data);
+		}
+	}
+
+	private void sendErrorReply(int error, long handle) {
+		if(!structuredReplies) {
+			sendSimpleReply(error, handle, null);
+			return;
+		}
+
+		/* error without message */
+		ByteBuffer bb = ByteBuffer.allocate(6);
+		bb.putInt(error);
+		bb.putShort((short) 0);
+		bb.flip();
+		sendStructuredReply(NBD_REPLY_FLAG_DONE, NBD_REPLY_TYPE_ERROR, handle, bb);
+	}
+
+	private void sendStructuredReply(short flags, short type, long handle, ByteBuffer data) {
+		ByteBuffer bbr = bufferPool.acquire(20);
+
+		bbr.putInt(NBD_STRUCTURED_REPLY_MAGIC);
+		bbr.putShort(flags);
+		bbr.putShort(type);
+		bbr.putLong(handle);
+		bbr.putInt(data != null ? data.remaining() : 0);
+		bbr.flip();
+
+		synchronized (writeQueue) {
+			queue(bbr);
+			if(data != null) {
+				queue(data);
+			}
+		}
+	}
+
+	private void sendSimpleReply(int error, long handle, ByteBuffer data) {
+		ByteBuffer bbr = bufferPool.acquire(16);
+
+		bbr.putInt(NBD_SIMPLE_REPLY_MAGIC);
+		bbr.putInt(error);
+		bbr.putLong(handle);
+		bbr.flip();
+
+		/* header and data must be queued together */
+		synchronized (writeQueue) {
+			queue(bbr);
+			if(data != null) {
+				queue(data);
+			}
+		}
+	}
+
+	private void sendOptionHagglingReply(int option, int reply, ByteBuffer data) {
+		ByteBuffer bb = ByteBuffer.allocate(20);
+
+		bb.putLong(NBD_REP_MAGIC);
+		bb.putInt(option);
+		bb.putInt(reply);
+		int len = 0;
+		if(data != null)
+			len = data.remaining();
+		bb.putInt(len);
+		bb.flip();
+
+		synchronized (writeQueue) {
+			queue(bb);
+			if(data != null)
+				queue(data);
+		}
+	}
+
+	private void queue(ByteBuffer bb) {
+		synchronized (writeQueue) {
+			writeQueue.add(bb);
+			queuedBytes += bb.remaining();
+		}
+	}
+
+	private void close() {
+		if(key != null)
+			key.cancel();
+		bufferPool.clear();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Logger.getLogger(NbdConnection.class.getName()).log(Level.WARNING, "close failed!", e);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Queues the requests in front of the DASD, only a limited number of requests is dispatched to the workers at once.
+ *  - requests of a priority are dispatched in the order of their position in the image, the elevator moves
+ *    upwards and starts again at the lowest position. Requests without a position, e.g. of cached tracks, go first
+ *  - client reads go before client writes, then cache hints of the clients and then background I/O,
+ *    a request which waited longer than the deadline of its priority goes before all others
+ *  - the requests of an export are limited by token buckets of IOPS and bytes per second
+ */
+class RequestScheduler {
+
+	enum Priority {
+		READ(100), WRITE(1000), CACHE(1000), BACKGROUND(10000);
+
+		private final long deadline;
+
+		Priority(long deadlineMillis) {
+			this.deadline = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		}
+	}
+
+	/* an operation on the DASD, started by a worker */
+	interface Operation<T> {
+		CompletableFuture<T> start() throws IOException;
+	}
+
+	private static final long DEFAULT_EXPORT_IOPS = Long.getLong("dasdnbd.exportIops", 0);
+	private static final long DEFAULT_EXPORT_BYTES_PER_SECOND = Long.getLong("dasdnbd.exportBytesPerSecond", 0);
+	private static final int MAX_BACKGROUND_DISPATCHED = 1;
+
+	private static final Comparator<Request<?>> BY_POSITION = Comparator.<Request<?>>comparingLong(r -> r.position).thenComparingLong(r -> r.seq);
+	private static final Comparator<Request<?>> BY_ARRIVAL = Comparator.comparingLong(r -> r.seq);
+
+	private final Executor workers;
+	private final int maxDispatched;
+	private final ScheduledExecutorService timer;
+	private final Map<String, ExportLimit> limits = new ConcurrentHashMap<>();
+
+	/* guarded by this */
+	private final Map<Priority, NavigableSet<Request<?>>> byPosition = new EnumMap<>(Priority.class);
+	private final Map<Priority, NavigableSet<Request<?>>> byArrival = new EnumMap<>(Priority.class);
+	private long headPosition; // position of the last dispatched request
+	private long seq;
+	private int dispatched, backgroundDispatched;
+	private boolean wakeupScheduled;
+
+	/**
+	 * @param workers
+	 * @param maxDispatched number of requests which are processed at once, the others are queued and ordered
+	 */
+	RequestScheduler(Executor workers, int maxDispatched) {
+		this.workers = workers;
+		this.maxDispatched = maxDispatched;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "scheduler-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		for(Priority p : Priority.values()) {
+			byPosition.put(p, new TreeSet<>(BY_POSITION));
+			byArrival.put(p, new TreeSet<>(BY_ARRIVAL));
+		}
+	}
+
+	/**
+	 * @param exportName export of the request, null for background I/O of the image
+	 * @param priority
+	 * @param position position of the request in the image or -1 if there is none
+	 * @param length bytes of the request
+	 * @param operation
+	 * @return result of the operation
+	 */
+	<T> CompletableFuture<T> submit(String exportName, Priority priority, long position, long length, Operation<T> operation) {
+		Request<T> r;
+		synchronized (this) {
+			r = new Request<>(exportName, priority, position, length, operation, seq++, System.nanoTime());
+			byPosition.get(priority).add(r);
+			byArrival.get(priority).add(r);
+		}
+		dispatch();
+		return r.result;
+	}
+
+	/**
+	 * limit the requests of an export, 0 for no limit
+	 * @param exportName
+	 * @param iops
+	 * @param bytesPerSecond
+	 */
+	void setExportLimit(String exportName, long iops, long bytesPerSecond) {
+		if(iops <= 0 && bytesPerSecond <= 0)
+			limits.put(exportName, ExportLimit.NONE);
+		else
+			limits.put(exportName, new ExportLimit(iops, bytesPerSecond));
+		dispatch();
+	}
+
+	private ExportLimit getExportLimit(String exportName) {
+		if(exportName == null)
+			return ExportLimit.NONE;
+		return limits.computeIfAbsent(exportName, e -> DEFAULT_EXPORT_IOPS > 0 || DEFAULT_EXPORT_BYTES_PER_SECOND > 0 ?
+				new ExportLimit(DEFAULT_EXPORT_IOPS, DEFAULT_EXPORT_BYTES_PER_SECOND) : ExportLimit.NONE);
+	}
+
+	private void dispatch() {
+		List<Request<?>> ready = new ArrayList<>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			while(dispatched < maxDispatched) {
+				Request<?> r = next(now);
+				if(r == null)
+					break;
+
+				byPosition.get(r.priority).remove(r);
+				byArrival.get(r.priority).remove(r);
+				getExportLimit(r.exportName).take(r.length);
+				dispatched++;
+				if(r.priority == Priority.BACKGROUND)
+					backgroundDispatched++;
+				if(r.position >= 0)
+					headPosition = r.position;
+				ready.add(r);
+			}
+			if(dispatched < maxDispatched)
+				scheduleWakeup(now);
+		}
+		for(Request<?> r : ready)
+			workers.execute(() -> start(r));
+	}
+
+	/* next request which may be dispatched now, null if there is none */
+	private Request<?> next(long now) {
+		/* expired requests by priority and arrival */
+		for(Priority p : Priority.values()) {
+			for(Request<?> r : byArrival.get(p)) {
+				if(now - r.enqueued < p.deadline)
+					break;
+				if(isDispatchable(r, now))
+					return r;
+			}
+		}
+
+		/* elevator: requests without position, then upwards from the head position, then from the lowest position */
+		for(Priority p : Priority.values()) {
+			NavigableSet<Request<?>> q = byPosition.get(p);
+			if(q.isEmpty())
+				continue;
+
+			Request<?> zero = probe(0), head = probe(headPosition);
+			for(NavigableSet<Request<?>> part : Arrays.asList(q.headSet(zero, false), q.tailSet(head, true), q.subSet(zero, true, head, false))) {
+				for(Request<?> r : part) {
+					if(isDispatchable(r, now))
+						return r;
+				}
+			}
+		}
+		return null;
+	}
+
+	private boolean isDispatchable(Request<?> r, long now) {
+		if(r.priority == Priority.BACKGROUND && backgroundDispatched >= MAX_BACKGROUND_DISPATCHED)
+			return false;
+		return getExportLimit(r.exportName).isAvailable(now);
+	}
+
+	/* dispatch again when the tokens of a limited export with queued requests are refilled */
+	private void scheduleWakeup(long now) {
+		if(wakeupScheduled)
+			return;
+
+		long wait = Long.MAX_VALUE;
+		for(NavigableSet<Request<?>> q : byArrival.values()) {
+			for(Request<?> r : q) {
+				long w = getExportLimit(r.exportName).getWait(now);
+				if(w > 0)
+					wait = Math.min(wait, w);
+			}
+		}
+		if(wait == Long.MAX_VALUE)
+			return;
+
+		wakeupScheduled = true;
+		timer.schedule(() -> {
+			synchronized (this) {
+				wakeupScheduled = false;
+			}
+			dispatch();
+		}, wait, TimeUnit.NANOSECONDS);
+	}
+
+	private <T> void start(Request<T> r) {
+		CompletableFuture<T> f;
+		try {
+			f = r.operation.start();
+		} catch (IOException | RuntimeException e) {
+			f = new CompletableFuture<>();
+			f.completeExceptionally(e);
+		}
+
+		f.whenComplete((v, e) -> {
+			synchronized (this) {
+				dispatched--;
+				if(r.priority == Priority.BACKGROUND)
+					backgroundDispatched--;
+			}
+			if(e != null)
+				r.result.completeExceptionally(e);
+			else
+				r.result.complete(v);
+			dispatch();
+		});
+	}
+
+	private static Request<?> probe(long position) {
+		return new Request<>(null, null, position, 0, null, -1, 0);
+	}
+
+	private static class Request<T> {
+		final String exportName;
+		final Priority priority;
+		final long position;
+		final long length;
+		final Operation<T> operation;
+		final long seq;
+		final long enqueued;
+		final CompletableFuture<T> result = new CompletableFuture<>();
+
+		Request(String exportName, Priority priority, long position, long length, Operation<T> operation, long seq, long enqueued) {
+			this.exportName = exportName;
+			this.priority = priority;
+			this.position = position;
+			this.length = length;
+			this.operation = operation;
+			this.seq = seq;
+			this.enqueued = enqueued;
+		}
+	}
+
+	/*
+	 * Token buckets of requests and bytes, refilled per second up to the limit of one second.
+	 * A request is dispatched while there are tokens left, so the tokens of a large request may go below zero.
+	 * Guarded by the scheduler.
+	 */
+	private static class ExportLimit {
+
+		static final ExportLimit NONE = new ExportLimit(0, 0);
+
+		private final long iops, bytesPerSecond;
+		private double ioTokens, byteTokens;
+		private long last;
+
+		ExportLimit(long iops, long bytesPerSecond) {
+			this.iops = iops;
+			this.bytesPerSecond = bytesPerSecond;
+			this.ioTokens = iops;
+			this.byteTokens = bytesPerSecond;
+			this.last = System.nanoTime();
+		}
+
+		private void refill(long now) {
+			double seconds = (now - last) / 1e9;
+			last = now;
+			if(iops > 0)
+				ioTokens = Math.min(iops, ioTokens + seconds * iops);
+			if(bytesPerSecond > 0)
+				byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+		}
+
+		boolean isAvailable(long now) {
+			if(this == NONE)
+				return true;
+			refill(now);
+			return (iops <= 0 || ioTokens > 0) && (bytesPerSecond <= 0 || byteTokens > 0);
+		}
+
+		void take(long bytes) {
+			if(this == NONE)
+				return;
+			ioTokens--;
+			byteTokens -= bytes;
+		}
+
+		/* nanoseconds until tokens are available, 0 if there are tokens */
+		long getWait(long now) {
+			if(this == NONE)
+				return 0;
+			refill(now);
+			double seconds = 0;
+			if(iops > 0 && ioTokens <= 0)
+				seconds = (1 - ioTokens) / iops;
+			if(bytesPerSecond > 0 && byteTokens <= 0)
+				seconds = Math.max(seconds, (1 - byteTokens) / bytesPerSecond);
+			return (long) Math.ceil(seconds * 1e9);
+		}
+	}
+}
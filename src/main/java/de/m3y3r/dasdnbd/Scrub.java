@@ -0,0 +1,70 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+
+/*
+ * Offline verification of an image, see CountKeyDataDasd.scrub(). A served image is scrubbed with
+ * the JMX bean de.m3y3r.dasdnbd:type=DasdAdmin instead.
+ * The report on stdout is one JSON object per line, a line per problem and a summary line at the end.
+ */
+public class Scrub {
+
+	public static void main(String... args) throws IOException {
+		int mibPerSecond = 0;
+		String image;
+		if(args.length == 3 && "--rate".equals(args[0])) {
+			mibPerSecond = Integer.parseInt(args[1]);
+			image = args[2];
+		} else if(args.length == 1) {
+			image = args[0];
+		} else {
+			System.err.println("usage: Scrub [--rate <MiB/s>] <image>");
+			System.exit(2);
+			return;
+		}
+
+		/* stdout is for the report only */
+		PrintStream report = System.out;
+		System.setOut(System.err);
+
+		Map<String, Number> summary;
+		try(CountKeyDataDasd ckd = new CountKeyDataDasd(image, true)) {
+			summary = ckd.scrub(mibPerSecond * 1024L * 1024, p -> report.println(toJson("problem", p)));
+		}
+		report.println(toJson("summary", summary));
+		report.flush();
+		if(summary.containsKey("problems"))
+			System.exit(1);
+	}
+
+	/* a JSON object of the type and the entries in one line */
+	static String toJson(String type, Map<String, ?> entries) {
+		StringBuilder sb = new StringBuilder("{\"type\":");
+		appendString(sb, type);
+		for(Map.Entry<String, ?> e : entries.entrySet()) {
+			sb.append(',');
+			appendString(sb, e.getKey());
+			sb.append(':');
+			if(e.getValue() instanceof Number)
+				sb.append(e.getValue());
+			else
+				appendString(sb, String.valueOf(e.getValue()));
+		}
+		return sb.append('}').toString();
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for(char c : s.toCharArray()) {
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+}
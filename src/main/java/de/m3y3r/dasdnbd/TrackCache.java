@@ -0,0 +1,77 @@
+package de.m3y3r.dasdnbd;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * LRU cache of decompressed tracks (without track header)
+ */
+class TrackCache {
+
+	private final long maxBytes;
+	private final LinkedHashMap<Long, ByteBuffer> tracks;
+	private long bytes;
+
+	TrackCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.tracks = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param track
+	 * @return a private view of the cached track data or null
+	 */
+	synchronized ByteBuffer get(long track) {
+		ByteBuffer trackData = tracks.get(track);
+		if(trackData == null)
+			return null;
+		ByteBuffer bb = trackData.duplicate();
+		bb.rewind();
+		return bb;
+	}
+
+	synchronized boolean contains(long track) {
+		return tracks.containsKey(track);
+	}
+
+	/**
+	 * the track data must not be modified afterwards, a track is charged with its length
+	 * @param track
+	 * @param trackData
+	 */
+	synchronized void put(long track, ByteBuffer trackData) {
+		ByteBuffer bb = trackData.duplicate();
+		bb.rewind();
+		if(!bb.hasArray() || bb.arrayOffset() != 0 || bb.array().length != bb.limit()) {
+			/* don't keep the buffer of a larger read or the spare capacity of a decompressed track alive */
+			ByteBuffer copy = ByteBuffer.allocate(bb.limit());
+			copy.put(bb);
+			copy.flip();
+			bb = copy;
+		}
+
+		ByteBuffer old = tracks.put(track, bb);
+		if(old != null)
+			bytes -= old.capacity();
+		bytes += bb.capacity();
+
+		Iterator<Map.Entry<Long, ByteBuffer>> it = tracks.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().capacity();
+			it.remove();
+		}
+	}
+
+	synchronized void invalidate(long track) {
+		ByteBuffer old = tracks.remove(track);
+		if(old != null)
+			bytes -= old.capacity();
+	}
+
+	/* maximum number of tracks of the given size which fit into the cache, a cached track is charged with its length */
+	int getCapacity(int trackSize) {
+		return (int) (maxBytes / trackSize);
+	}
+}
@@ -0,0 +1,118 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Access frequency per track of an image, persisted in a sidecar file.
+ *
+ * Sidecar file is:
+ *  - magic
+ *  - number of tracks
+ *  - number of entries
+ *  - entries of track number and access count, only tracks which were accessed
+ *
+ * Counters saturate and are updated without synchronization, a lost update doesn't matter here.
+ */
+class TrackHeatMap {
+
+	private static final int MAGIC = 0x48454154; // "HEAT"
+	private static final int ENTRY_LENGTH = 4 + 2;
+
+	private final Path path;
+	private final char[] counts;
+
+	TrackHeatMap(Path path, int noTracks) {
+		this.path = path;
+		this.counts = new char[noTracks];
+	}
+
+	void touch(long track) {
+		if(track >= 0 && track < counts.length && counts[(int) track] != Character.MAX_VALUE) {
+			counts[(int) track]++;
+		}
+	}
+
+	/**
+	 * load the persisted counts, counts are halved on load so old heat fades out
+	 * @throws IOException
+	 */
+	void load() throws IOException {
+		if(!Files.exists(path))
+			return;
+
+		ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(path));
+		if(bb.remaining() < 12 || bb.getInt() != MAGIC || bb.getInt() != counts.length) {
+			System.out.printf("Ignoring heat map %s of other image\n", path);
+			return;
+		}
+
+		int noEntries = bb.getInt();
+		for(int i = 0; i < noEntries && bb.remaining() >= ENTRY_LENGTH; i++) {
+			int track = bb.getInt();
+			char count = bb.getChar();
+			if(track >= 0 && track < counts.length)
+				counts[track] = (char) (count >> 1);
+		}
+	}
+
+	/**
+	 * save the counts, the sidecar file is replaced atomically
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		int noEntries = 0;
+		for(char c : counts)
+			if(c != 0) noEntries++;
+
+		ByteBuffer bb = ByteBuffer.allocate(12 + noEntries * ENTRY_LENGTH);
+		bb.putInt(MAGIC);
+		bb.putInt(counts.length);
+		bb.putInt(noEntries);
+		for(int i = 0, n = 0; i < counts.length && n < noEntries; i++) {
+			char c = counts[i];
+			if(c != 0) {
+				bb.putInt(i);
+				bb.putChar(c);
+				n++;
+			}
+		}
+		bb.flip();
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(bb.hasRemaining())
+				fc.write(bb);
+			fc.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param max
+	 * @return the most accessed tracks, hottest first
+	 */
+	long[] getHottestTracks(int max) {
+		/* count and track packed, the counts may change while sorting */
+		List<Long> tracks = new ArrayList<>();
+		for(int i = 0; i < counts.length; i++) {
+			char c = counts[i];
+			if(c != 0) tracks.add(((long) c << 32) | i);
+		}
+		tracks.sort(Collections.reverseOrder());
+
+		int n = Math.min(max, tracks.size());
+		long[] hottest = new long[n];
+		for(int i = 0; i < n; i++)
+			hottest[i] = tracks.get(i) & 0xff_ff_ff_ffl;
+		return hottest;
+	}
+}
@@ -0,0 +1,202 @@
+package de.m3y3r.dasdnbd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class CompressedCkdFileTest {
+
+	@Parameters(name = "cckd64={0}")
+	public static Collection<Object[]> formats() {
+		return Arrays.asList(new Object[][] {{false}, {true}});
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final boolean cckd64;
+	private ExecutorService executor;
+	private Path path;
+	private CompressedCkdFile file;
+
+	public CompressedCkdFileTest(boolean cckd64) {
+		this.cckd64 = cckd64;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newSingleThreadExecutor();
+		path = TestImages.create(folder.getRoot().toPath().resolve("img.cckd"), cckd64);
+		file = new CompressedCkdFile(path.toString(), executor, false);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		file.close();
+		executor.shutdown();
+	}
+
+	@Test
+	public void freedSpaceIsMergedWithTheBlockBefore() throws IOException {
+		long[] pos = allocate(3, 100);
+		free(pos[0], 100);
+		free(pos[1], 100);
+
+		assertFreeBlocks(new long[] {pos[0], 200});
+	}
+
+	@Test
+	public void freedSpaceIsMergedWithTheBlockAfter() throws IOException {
+		long[] pos = allocate(3, 100);
+		free(pos[1], 100);
+		free(pos[0], 100);
+
+		assertFreeBlocks(new long[] {pos[0], 200});
+	}
+
+	@Test
+	public void freedSpaceIsMergedWithTheBlocksBeforeAndAfter() throws IOException {
+		long[] pos = allocate(4, 100);
+		file.deallocateFreeSpace(pos[0], 100);
+		file.deallocateFreeSpace(pos[2], 100);
+		file.sync();
+		free(pos[1], 100);
+
+		assertFreeBlocks(new long[] {pos[0], 300});
+		assertEquals(300, file.getCompressedDeviceHeader().get("largestFreeSpace").longValue());
+	}
+
+	@Test
+	public void usedUpBlockIsRemoved() throws IOException {
+		long[] pos = allocate(3, 100);
+		free(pos[1], 100);
+
+		assertEquals(pos[1], file.allocateFreeSpace(100));
+		assertFreeBlocks();
+		assertEquals(0, file.getCompressedDeviceHeader().get("totalFreeSpace").longValue());
+		assertEquals(0, file.getCompressedDeviceHeader().get("largestFreeSpace").longValue());
+	}
+
+	@Test
+	public void partlyUsedBlockShrinks() throws IOException {
+		long[] pos = allocate(3, 100);
+		free(pos[1], 100);
+
+		assertEquals(pos[1], file.allocateFreeSpace(40));
+		assertFreeBlocks(new long[] {pos[1] + 40, 60});
+	}
+
+	@Test
+	public void freedSpaceIsReusedOnlyAfterTheCommit() throws IOException {
+		long[] pos = allocate(3, 100);
+		file.deallocateFreeSpace(pos[1], 100);
+
+		assertNotEquals(pos[1], file.allocateFreeSpace(100));
+		file.sync();
+		assertEquals(pos[1], file.allocateFreeSpace(100));
+	}
+
+	@Test
+	public void fullFreeSpaceMapGrows() throws IOException {
+		long[] pos = allocate(3000, 100);
+
+		/* every other block, nothing is merged */
+		Set<Long> freed = new HashSet<>();
+		for(int i = 0; i < 20; i += 2) {
+			file.deallocateFreeSpace(pos[i], 100);
+			freed.add(pos[i]);
+		}
+		file.sync();
+		long firstMap = file.getCompressedDeviceHeader().get("positionToFreeSpace").longValue();
+		int firstMapLength = freeSpaceMapLength();
+
+		for(int i = 20; i < pos.length; i += 2) {
+			file.deallocateFreeSpace(pos[i], 100);
+			freed.add(pos[i]);
+		}
+		file.sync();
+		assertNotEquals("free space map is moved", firstMap, file.getCompressedDeviceHeader().get("positionToFreeSpace").longValue());
+
+		/* the old map is freed with the next commit */
+		file.sync();
+		freed.add(firstMap);
+		file.close();
+
+		file = new CompressedCkdFile(path.toString(), executor, false);
+		Set<Long> blocks = new HashSet<>();
+		long total = 0;
+		for(long[] b : getFreeBlocks()) {
+			blocks.add(b[0]);
+			total += b[1];
+		}
+		assertEquals(freed, blocks);
+		assertEquals(1500 * 100 + firstMapLength, total);
+		assertEquals(total, file.getCompressedDeviceHeader().get("totalFreeSpace").longValue());
+		assertEquals(freed.size() + 1, file.getCompressedDeviceHeader().get("numberFreeSpaces").intValue());
+
+		/* the blocks are used after the reopen */
+		assertTrue(freed.contains(file.allocateFreeSpace(100)));
+	}
+
+	private long[] allocate(int n, int len) throws IOException {
+		long[] pos = new long[n];
+		for(int i = 0; i < n; i++)
+			pos[i] = file.allocateFreeSpace(len);
+		file.sync();
+		return pos;
+	}
+
+	/* frees the space and commits it, so it can be reused */
+	private void free(long pos, int len) throws IOException {
+		file.deallocateFreeSpace(pos, len);
+		file.sync();
+	}
+
+	/* free space blocks without the block of the free space map itself */
+	private List<long[]> getFreeBlocks() throws IOException {
+		long positionToFreeSpace = file.getCompressedDeviceHeader().get("positionToFreeSpace").longValue();
+		List<long[]> blocks = new ArrayList<>();
+		for(long[] b : file.readFreeSpaceBlocks()) {
+			if(b[0] != positionToFreeSpace)
+				blocks.add(b);
+		}
+		return blocks;
+	}
+
+	private int freeSpaceMapLength() throws IOException {
+		long positionToFreeSpace = file.getCompressedDeviceHeader().get("positionToFreeSpace").longValue();
+		for(long[] b : file.readFreeSpaceBlocks()) {
+			if(b[0] == positionToFreeSpace)
+				return (int) b[1];
+		}
+		throw new AssertionError("free space map has no block of its own");
+	}
+
+	private void assertFreeBlocks(long[]... expected) throws IOException {
+		List<long[]> blocks = getFreeBlocks();
+		assertEquals(expected.length, blocks.size());
+		for(int i = 0; i < expected.length; i++)
+			assertEquals(Arrays.toString(expected[i]), Arrays.toString(blocks.get(i)));
+	}
+}
@@ -0,0 +1,197 @@
+package de.m3y3r.dasdnbd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetadataJournalTest {
+
+	/* an update of 3 bytes and a commit record */
+	private static final int UPDATE_LENGTH = 17 + 3 + 4;
+	private static final int COMMIT_LENGTH = 17 + 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path journalPath;
+	private FileChannel image;
+
+	@Before
+	public void setUp() throws IOException {
+		journalPath = folder.getRoot().toPath().resolve("img.journal");
+		image = open(folder.getRoot().toPath().resolve("img"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		image.close();
+	}
+
+	@Test
+	public void commitWritesTheUpdatesIntoTheImage() throws IOException {
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			journal.log(10, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			assertEquals(UPDATE_LENGTH, journal.pendingSize());
+			assertEquals("uncommitted update is written into the image", 0, image.size());
+
+			journal.commit(image);
+			assertEquals(0, journal.pendingSize());
+			assertEquals(UPDATE_LENGTH + COMMIT_LENGTH, journal.size());
+			assertArrayEquals(new byte[] {1, 2, 3}, read(image, 10, 3));
+		}
+	}
+
+	@Test
+	public void replayRedoesTheCommittedTransactions() throws IOException {
+		writeTwoTransactions();
+
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			assertEquals(2, journal.replay(image));
+		}
+		assertArrayEquals(new byte[] {1, 2, 3}, read(image, 0, 3));
+		assertArrayEquals(new byte[] {4, 5, 6}, read(image, 100, 3));
+	}
+
+	@Test
+	public void uncommittedTailIsDiscarded() throws IOException {
+		writeTwoTransactions();
+		truncate(2 * UPDATE_LENGTH + COMMIT_LENGTH);
+
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			assertEquals(1, journal.replay(image));
+		}
+		assertArrayEquals(new byte[] {1, 2, 3}, read(image, 0, 3));
+		assertEquals("update without commit is replayed", 3, image.size());
+	}
+
+	@Test
+	public void tornRecordEndsTheReplay() throws IOException {
+		writeTwoTransactions();
+		truncate(UPDATE_LENGTH + COMMIT_LENGTH + UPDATE_LENGTH / 2);
+
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			assertEquals(1, journal.replay(image));
+		}
+		assertEquals(3, image.size());
+	}
+
+	@Test
+	public void recordWithBadCrcEndsTheReplay() throws IOException {
+		writeTwoTransactions();
+		try(FileChannel fc = open(journalPath)) {
+			/* first data byte of the second update */
+			fc.write(ByteBuffer.wrap(new byte[] {42}), UPDATE_LENGTH + COMMIT_LENGTH + 17);
+		}
+
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			assertEquals(1, journal.replay(image));
+		}
+		assertEquals(3, image.size());
+	}
+
+	@Test
+	public void resetDiscardsTheJournal() throws IOException {
+		writeTwoTransactions();
+		try(MetadataJournal journal = new MetadataJournal(journalPath)) {
+			journal.reset();
+			assertEquals(0, journal.size());
+			assertEquals(0, journal.replay(image));
+		}
+		assertFalse(Files.exists(journalPath));
+	}
+
+	@Test
+	public void replayedImageCanBeReopened() throws IOException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Path crashed = TestImages.create(folder.getRoot().toPath().resolve("crashed.cckd"), false);
+			Path img = folder.getRoot().toPath().resolve("img.cckd");
+			Files.copy(crashed, img);
+
+			/* the image of the crash has the journal of the sync, but none of its updates */
+			long level2TablePosition;
+			CompressedCkdFile file = new CompressedCkdFile(img.toString(), executor, false);
+			try {
+				level2TablePosition = file.allocateFreeSpace(file.getLevel2TableLength());
+				file.writeLevel2Table(level2TablePosition, file.createLevel2Table());
+				file.writeLevel1Entry(3, level2TablePosition);
+				file.writeLevel2Entry(level2TablePosition, 3, level2Entry(4242, 100));
+				file.sync();
+				Files.copy(new File(img + ".journal").toPath(), new File(crashed + ".journal").toPath());
+			} finally {
+				file.close();
+			}
+
+			for(int i = 0; i < 2; i++) {
+				file = new CompressedCkdFile(crashed.toString(), executor, false);
+				try {
+					assertEquals(level2TablePosition, file.readLevel1Entry(3));
+					assertEquals(4242L, file.readLevel2Entry(level2TablePosition, 3).get("position").longValue());
+					assertEquals(level2TablePosition + file.getLevel2TableLength(), file.getCompressedDeviceHeader().get("fileSize").longValue());
+				} finally {
+					file.close();
+				}
+				assertFalse("journal is left after a clean close", new File(crashed + ".journal").exists());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/* the first transaction updates position 0, the second position 100 */
+	private void writeTwoTransactions() throws IOException {
+		try(FileChannel scratch = open(folder.getRoot().toPath().resolve("scratch"));
+				MetadataJournal journal = new MetadataJournal(journalPath)) {
+			journal.log(0, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			journal.commit(scratch);
+			journal.log(100, ByteBuffer.wrap(new byte[] {4, 5, 6}));
+			journal.commit(scratch);
+		}
+		assertEquals(2 * (UPDATE_LENGTH + COMMIT_LENGTH), Files.size(journalPath));
+	}
+
+	private void truncate(long size) throws IOException {
+		try(FileChannel fc = open(journalPath)) {
+			fc.truncate(size);
+		}
+		assertTrue(Files.size(journalPath) == size);
+	}
+
+	private static Map<String, Number> level2Entry(long position, int length) {
+		Map<String, Number> l2Entry = new HashMap<>();
+		l2Entry.put("position", position);
+		l2Entry.put("length", length);
+		l2Entry.put("size", length);
+		return l2Entry;
+	}
+
+	private static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static byte[] read(FileChannel fc, long pos, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		while(bb.hasRemaining() && fc.read(bb, pos + bb.position()) >= 0)
+			;
+		return bb.array();
+	}
+}
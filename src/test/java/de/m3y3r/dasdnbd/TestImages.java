@@ -0,0 +1,57 @@
+package de.m3y3r.dasdnbd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* empty compressed images for the tests, only the headers and a level 1 table without level 2 tables */
+class TestImages {
+
+	static final int SIZE_LEVEL1_TABLE = 4;
+	static final int SIZE_LEVEL2_TABLE = 256;
+
+	static Path create(Path path, boolean cckd64) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(1024 + SIZE_LEVEL1_TABLE * (cckd64 ? Long.BYTES : Integer.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+
+		/* device header of a 3390 */
+		bb.put((cckd64 ? "CKD_C064" : "CKD_C370").getBytes());
+		bb.putInt(15);
+		bb.putInt(56832);
+		bb.put((byte) 0x90);
+		bb.put((byte) 0);
+		bb.putShort((short) 0);
+
+		/* compressed device header without free space */
+		bb.position(512);
+		bb.put((byte) 0).put((byte) 3).put((byte) 1).put((byte) 0);
+		bb.putInt(SIZE_LEVEL1_TABLE);
+		bb.putInt(SIZE_LEVEL2_TABLE);
+		long fileSize = bb.capacity();
+		if(cckd64) {
+			bb.putInt(0);
+			bb.putLong(fileSize);
+			bb.putLong(fileSize);
+			for(int i = 0; i < 5; i++)
+				bb.putLong(0);
+		} else {
+			bb.putInt((int) fileSize);
+			bb.putInt((int) fileSize);
+			for(int i = 0; i < 5; i++)
+				bb.putInt(0);
+		}
+		bb.putInt(SIZE_LEVEL1_TABLE * SIZE_LEVEL2_TABLE / 15);
+		bb.put((byte) 2);
+		bb.put((byte) 1);
+		bb.putShort((short) 0);
+		bb.clear();
+
+		try(FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(bb.hasRemaining())
+				fc.write(bb);
+		}
+		return path;
+	}
+}